@@ -3,54 +3,141 @@ import static gitlet.Utils.*;
 import static gitlet.MyUtils.*;
 
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 
 
 /** Represents a gitlet blob object,
- * which is basically a file object,
- * but the same file with different contents are regarded as different blobs
- * so that it's able to save and recover different versions of the same file across commits
+ * which is basically the contents of a file.
+ * A blob is identified by its contents only: the same bytes under different names,
+ * or a file that is moved, share one blob, and the path that points at it
+ * lives in the blobs map of the commit only.
+ * The object file of a blob holds the object header followed by the raw contents,
+ * not a serialized Blob.
+ *
+ * Contents are never loaded as a whole: hashing, storing and checking out
+ * all go through a fixed-size buffer, so memory use does not depend on file size.
  *  @author Grebeth.P
  */
 
-public class Blob implements Serializable {
-    private File fileInCWD;
-    private byte[] filecontent;
-    private String filePath;
+public class Blob {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File source;
     private String blobID;
 
     public Blob(File f) {
-        this.fileInCWD = f;
-        this.filecontent = readContents(fileInCWD);
-        this.filePath = fileInCWD.getPath();
-        this.blobID = sha1(this.filePath, filecontent);
+        this.source = f;
+        this.blobID = idOf(f);
     }
 
-    public byte[] getContent() {
-        return filecontent;
+    // a blob for F whose ID is already known, e.g. from the stat data cached in the index
+    public Blob(File f, String blobID) {
+        this.source = f;
+        this.blobID = blobID;
     }
 
     public String getID() {
         return blobID;
     }
 
-    public String getFilePath() {
-        return filePath;
+    // identical contents were saved before under the same ID, so they are not written again
+    public void saveBlob() {
+        if (!objectExistence(blobID, Repository.OBJECT_DIR)) {
+            blobID = storeFile(source, Repository.OBJECT_DIR);
+        }
     }
 
-    public File getFileInCWD() {
-        return fileInCWD;
+    // the ID a file in CWD would have as a blob
+    public static String idOf(File f) {
+        MessageDigest md = newDigest();
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            while (in.read(buf) != -1) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return Codec.toHex(md.digest());
     }
 
-    public void saveBlob() {
-        File outFile = getObjectFilebyID(blobID, Repository.OBJECT_DIR);
-        writeObject(outFile, this);
+    // copies F into a temporary file of the store while hashing it, then renames
+    // the copy to its object path; returns the ID of what was actually copied
+    private static String storeFile(File f, File objectDir) {
+        MessageDigest md = newDigest();
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(objectDir.toPath(), "tmp_obj_", null);
+            try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                out.position(OBJECT_HEADER_SIZE);
+                long length = 0;
+                while (in.read(buf) != -1) {
+                    buf.flip();
+                    length += buf.remaining();
+                    md.update(buf.duplicate());
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                }
+                // the length is only known once the copy is done
+                out.write(ByteBuffer.wrap(objectHeader(BLOB_TYPE, length)), 0);
+            }
+            String id = Codec.toHex(md.digest());
+            File outFile = newObjectFile(id, objectDir);
+            Files.move(tmp, outFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return id;
+        } catch (IOException excp) {
+            if (tmp != null) {
+                new File(tmp.toString()).delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // the contents of the blob with the given ID, for callers that do need them in memory
+    public static byte[] readBlob(String id, File objectDir) {
+        return readObjectBytes(id, objectDir);
     }
 
-    public void updateBlob(File newBlob) {
-        this.fileInCWD = newBlob;
-        this.filePath = newBlob.getPath();
-        saveBlob();
+    // copies the contents of the blob with the given ID into TARGET channel to channel,
+    // so the kernel moves the bytes and none of them go through the Java heap; only
+    // blobs packed as deltas are rebuilt in memory. TARGET is only opened, and emptied,
+    // once the blob is found
+    public static void writeBlobTo(String id, File objectDir, File target) {
+        File loose = getObjectFilebyID(id, objectDir);
+        PackFile pack = loose.exists() ? null : PackFile.open(objectDir);
+        if (!loose.exists() && (pack == null || !pack.contains(id))) {
+            throw error("No blob with id %s", id);
+        }
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (pack == null) {
+                try (FileChannel in = FileChannel.open(loose.toPath(), StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long done = OBJECT_HEADER_SIZE;
+                    while (done < size) {
+                        done += in.transferTo(done, size - done, out);
+                    }
+                }
+            } else {
+                pack.transferContent(id, out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
 }
@@ -0,0 +1,35 @@
+package gitlet;
+
+import java.io.File;
+
+/** Thin client for Gitlet: hands the command to the daemon of the repository
+ * in the current directory, and runs it through Main itself when there is none.
+ * Output and exit codes are the same either way. If the daemon goes away once it
+ * has the command, the command is not run again, as it may already have run.
+ * daemon and watch, which run until stopped, always run in this process.
+ *
+ *  Usage: java gitlet.Client ARGS, exactly as for gitlet.Main
+ *
+ *  @author Grebeth.P
+ */
+public class Client {
+
+    public static void main(String[] args) {
+        String cwd = System.getProperty("user.dir");
+        int code = Daemon.NOT_SERVED;
+        if (!Daemon.runsLocally(args)) {
+            try {
+                code = Daemon.send(new File(cwd, ".gitlet"), cwd, args);
+            } catch (GitletException excp) {
+                System.out.println(excp.getMessage());
+                System.exit(1);
+            }
+        }
+        if (code == Daemon.NOT_SERVED) {
+            Main.main(args);
+        } else if (code != 0) {
+            System.exit(code);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package gitlet;
+import static gitlet.Utils.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/** The binary format gitlet stores commits, trees, the index and the remotes in,
+ * in place of java.io serialization: no class descriptors, strings as a length
+ * followed by their UTF-8 bytes, object IDs as their 20 raw bytes, and numbers
+ * big-endian. Every record starts with a format version, so that a reader can
+ * tell a record it does not understand from a corrupted one.
+ *
+ * Fields are read in order from a ByteBuffer, so a reader that only needs the
+ * first fields of a record (the parents of a commit, say) stops there.
+ *
+ *  @author Grebeth.P
+ */
+class Codec {
+    public static final int ID_BYTES = 20;
+
+    /** A growable buffer the fields of a record are appended to. */
+    static class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Encoder putByte(int b) {
+            out.write(b);
+            return this;
+        }
+
+        Encoder putInt(int n) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.write(n >>> shift);
+            }
+            return this;
+        }
+
+        Encoder putLong(long n) {
+            putInt((int) (n >>> 32));
+            return putInt((int) n);
+        }
+
+        Encoder putBytes(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Encoder putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            return putBytes(bytes);
+        }
+
+        Encoder putID(String id) {
+            return putBytes(fromHex(id));
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    // reads the version byte of a record and refuses the ones newer than this reader
+    static void checkVersion(ByteBuffer in, int maxVersion, String what) {
+        int version = in.get();
+        if (version < 1 || version > maxVersion) {
+            throw error("Unsupported %s format version %d", what, version);
+        }
+    }
+
+    static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void skipString(ByteBuffer in) {
+        int length = in.getInt();
+        in.position(in.position() + length);
+    }
+
+    static String getID(ByteBuffer in) {
+        byte[] raw = new byte[ID_BYTES];
+        in.get(raw);
+        return toHex(raw);
+    }
+
+    static String toHex(byte[] raw) {
+        StringBuilder sb = new StringBuilder(2 * raw.length);
+        for (byte b : raw) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static byte[] fromHex(String id) {
+        byte[] res = new byte[id.length() / 2];
+        for (int k = 0; k < res.length; k++) {
+            res[k] = (byte) (Character.digit(id.charAt(2 * k), 16) << 4
+                    | Character.digit(id.charAt(2 * k + 1), 16));
+        }
+        return res;
+    }
+
+}
@@ -3,7 +3,7 @@ import static gitlet.Utils.*;
 import static gitlet.MyUtils.*;
 
 import java.io.File;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -13,11 +13,18 @@ import java.util.*;
  *
  * serves as the key dot in the DAG graph structured;
  * captures the current snapshot of all the files and respective
- * contents when this new commit is created
+ * contents when this new commit is created, as the tree of the
+ * repository root; files are reached through the trees below it
+ *
+ * stored with Codec, parents first so that walking the history
+ * does not need to decode the rest:
+ *  version | number of parents | parent IDs | message | time | tree ID
  *
  *  @author Grebeth.P
  */
-public class Commit implements Serializable {
+public class Commit {
+    private static final int VERSION = 1;
+
 
     // The message of this Commit.
     private String commitMsg;
@@ -25,7 +32,9 @@ public class Commit implements Serializable {
     private String commitTime;
     // first parent's SHA1 ID - reference to the blob
     private List<String> parents;
-    // a map from filepath to its file/blob ID
+    // ID of the tree of the repository root
+    private String treeID;
+    // the files of the tree as a map from filepath to blob ID, built when first asked for
     private HashMap<String, String> blobs;
     // own commit SHA1 ID later to generated based on the 4 parts above
     private String commitID;
@@ -40,19 +49,23 @@ public class Commit implements Serializable {
         this.commitMsg = "initial commit";
         this.commitTime = generateCommitTime();
         this.parents = new ArrayList<>();
-        this.blobs = new HashMap<>();
+        this.treeID = Tree.EMPTY_ID;
         this.commitID = generateCommitID();
     }
 
-    public Commit(String commitMsg, List<String> parents, HashMap<String, String> blobs) {
+    public Commit(String commitMsg, List<String> parents, String treeID) {
+        this(commitMsg, generateCommitTime(), parents, treeID);
+    }
+
+    private Commit(String commitMsg, String commitTime, List<String> parents, String treeID) {
         this.commitMsg = commitMsg;
-        this.commitTime = generateCommitTime();
+        this.commitTime = commitTime;
         this.parents = parents;
-        this.blobs = blobs;
+        this.treeID = treeID;
         this.commitID = generateCommitID();
     }
 
-    private String generateCommitTime() {
+    private static String generateCommitTime() {
         String pattern = "EEE MMM d HH:mm:ss yyyy Z";
         DateFormat df = new SimpleDateFormat(pattern, Locale.US);
         return df.format(new Date());
@@ -70,12 +83,28 @@ public class Commit implements Serializable {
         return parents;
     }
 
+    public String getTreeID() {
+        return treeID;
+    }
+
     public HashMap<String, String> getBlobs() {
+        return getBlobs(Repository.OBJECT_DIR);
+    }
+
+    // the blobs map of a commit whose trees are stored in OBJECTDIR, e.g. a remote one;
+    // paths always point into the current working directory
+    public HashMap<String, String> getBlobs(File objectDir) {
+        if (blobs == null) {
+            blobs = new HashMap<>();
+            for (Map.Entry<String, String> e : Tree.flatten(treeID, objectDir).entrySet()) {
+                blobs.put(join(Repository.CWD, e.getKey()).getPath(), e.getValue());
+            }
+        }
         return blobs;
     }
 
     public String generateCommitID() {
-        return Utils.sha1(commitMsg, commitTime, parents.toString(), blobs.toString());
+        return Utils.sha1(commitMsg, commitTime, parents.toString(), treeID);
     }
 
     public String getCommitID() {
@@ -83,13 +112,44 @@ public class Commit implements Serializable {
     }
 
     public void saveCommit() {
-        File outFile = getObjectFilebyID(commitID, Repository.OBJECT_DIR);
-        writeObject(outFile, this);
+        saveCommit(Repository.OBJECT_DIR);
+    }
+
+    public void saveCommit(File objectDir) {
+        File outFile = newObjectFile(commitID, objectDir);
+        byte[] content = encode();
+        writeContents(outFile, objectHeader(COMMIT_TYPE, content.length), content);
+    }
+
+    public byte[] encode() {
+        Codec.Encoder out = new Codec.Encoder().putByte(VERSION).putByte(parents.size());
+        for (String p : parents) {
+            out.putID(p);
+        }
+        return out.putString(commitMsg).putString(commitTime).putID(treeID).toByteArray();
+    }
+
+    public static Commit decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        List<String> parents = readParents(in);
+        String msg = Codec.getString(in);
+        String time = Codec.getString(in);
+        return new Commit(msg, time, parents, Codec.getID(in));
+    }
+
+    /** The parents of the commit stored as BYTES; nothing after them is decoded. */
+    public static List<String> parentsOf(byte[] bytes) {
+        return readParents(ByteBuffer.wrap(bytes));
     }
 
-    public void updateBlobs(HashMap<String, String> newBlobs) {
-        this.blobs = newBlobs;
-        saveCommit();
+    private static List<String> readParents(ByteBuffer in) {
+        Codec.checkVersion(in, VERSION, "commit");
+        int n = in.get() & 0xff;
+        List<String> res = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            res.add(Codec.getID(in));
+        }
+        return res;
     }
 
 }
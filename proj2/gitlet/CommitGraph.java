@@ -0,0 +1,328 @@
+package gitlet;
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/** Represents the commit-graph of a gitlet repository.
+ *
+ * A compact binary copy of the history kept in .gitlet/commit-graph,
+ * holding for every commit only its parents (as positions in the file) and
+ * its generation number, so that ancestry walks never deserialize a Commit.
+ * Parents always come before their children, so the file is append-only:
+ * commits missing from it (new commits, fetched or pushed ones) are added
+ * the first time they are asked for.
+ *
+ *  layout: "GCGR" | version | count | count * entry
+ *  entry:  20-byte raw id | generation | number of parents | parent positions
+ *
+ * The generation of a root commit is 1, and that of any other commit is one more
+ * than the largest generation of its parents, so an ancestor always has a smaller
+ * generation than its descendants.
+ *
+ *  @author Grebeth.P
+ */
+public class CommitGraph {
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    private static final int HEADER_SIZE = 12;
+    private static final int ID_BYTES = 20;
+
+    // paint flags for the merge-base walk
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    // loaded graphs are kept for the rest of the invocation, one per .gitlet folder
+    private static final HashMap<File, CommitGraph> LOADED = new HashMap<>();
+
+    private final File graphFile;
+    private final File objectDir;
+    private final List<String> ids = new ArrayList<>();
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private final List<int[]> parents = new ArrayList<>();
+    private int[] generations = new int[16];
+    // number of entries already written to graphFile, and its length after that
+    private int saved;
+    private long savedLength;
+
+    private CommitGraph(File gitletDir) {
+        this.graphFile = join(gitletDir, "commit-graph");
+        this.objectDir = join(gitletDir, "objects");
+    }
+
+    /** Returns the commit-graph of the repository in GITLETDIR. */
+    public static CommitGraph load(File gitletDir) {
+        File key = gitletDir.getAbsoluteFile();
+        if (LOADED.containsKey(key)) {
+            return LOADED.get(key);
+        }
+        CommitGraph graph = new CommitGraph(gitletDir);
+        if (graph.graphFile.isFile()) {
+            graph.read();
+        }
+        LOADED.put(key, graph);
+        return graph;
+    }
+
+    // only the COUNT entries the header counts are read; whatever follows them was
+    // left by a save that did not finish, and is cut off by the next one
+    private void read() {
+        ByteBuffer buf = ByteBuffer.wrap(readContents(graphFile));
+        if (buf.limit() < HEADER_SIZE) {
+            return;
+        }
+        for (byte b : MAGIC) {
+            if (buf.get() != b) {
+                throw error("Corrupted commit-graph %s", graphFile.getPath());
+            }
+        }
+        buf.getInt(); // version
+        int count = buf.getInt();
+        byte[] raw = new byte[ID_BYTES];
+        try {
+            for (int i = 0; i < count; i++) {
+                buf.get(raw);
+                int gen = buf.getInt();
+                int[] ps = new int[buf.getInt()];
+                for (int k = 0; k < ps.length; k++) {
+                    ps[k] = buf.getInt();
+                }
+                append(Codec.toHex(raw), ps, gen);
+            }
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupted commit-graph %s", graphFile.getPath());
+        }
+        saved = count;
+        savedLength = buf.position();
+    }
+
+    private void append(String id, int[] ps, int gen) {
+        int pos = ids.size();
+        if (pos == generations.length) {
+            generations = Arrays.copyOf(generations, pos * 2);
+        }
+        ids.add(id);
+        positions.put(id, pos);
+        parents.add(ps);
+        generations[pos] = gen;
+    }
+
+    // writes the entries added since the last save after the ones saved, then the new
+    // count; until the count is written, a reader sees the graph as it was
+    private void save() {
+        if (saved == ids.size()) {
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(graphFile, "rw")) {
+            if (savedLength < HEADER_SIZE) {
+                out.setLength(0);
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0);
+                savedLength = HEADER_SIZE;
+            }
+            out.setLength(savedLength);
+            out.seek(savedLength);
+            for (int i = saved; i < ids.size(); i++) {
+                out.write(Codec.fromHex(ids.get(i)));
+                out.writeInt(generations[i]);
+                out.writeInt(parents.get(i).length);
+                for (int p : parents.get(i)) {
+                    out.writeInt(p);
+                }
+            }
+            out.seek(8);
+            out.writeInt(ids.size());
+            savedLength = out.length();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        saved = ids.size();
+    }
+
+    /** Forgets the graphs whose file was appended to by another process since they
+     *  were loaded, as appending to them again would write entries twice. */
+    public static void forgetStale() {
+        LOADED.values().removeIf(graph -> graph.graphFile.length() != graph.savedLength);
+    }
+
+    public boolean contains(String id) {
+        return positions.containsKey(id);
+    }
+
+    /** Returns the position of the commit ID, adding it and whichever of its
+     *  ancestors are missing to the graph first. */
+    public int ensure(String id) {
+        if (positions.containsKey(id)) {
+            return positions.get(id);
+        }
+        // iterative post-order walk, so that parents are always added first
+        Deque<String> stack = new ArrayDeque<>();
+        HashMap<String, List<String>> pending = new HashMap<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            String top = stack.peek();
+            if (positions.containsKey(top)) {
+                stack.pop();
+                continue;
+            }
+            if (!pending.containsKey(top)) {
+                List<String> ps = Commit.parentsOf(readObjectBytes(top, objectDir));
+                pending.put(top, ps);
+                for (String p : ps) {
+                    if (!positions.containsKey(p)) {
+                        stack.push(p);
+                    }
+                }
+                continue;
+            }
+            List<String> ps = pending.remove(top);
+            int[] pPositions = new int[ps.size()];
+            int gen = 0;
+            for (int k = 0; k < pPositions.length; k++) {
+                pPositions[k] = positions.get(ps.get(k));
+                gen = Math.max(gen, generations[pPositions[k]]);
+            }
+            append(top, pPositions, gen + 1);
+            stack.pop();
+        }
+        save();
+        return positions.get(id);
+    }
+
+    public List<String> getParents(String id) {
+        List<String> res = new ArrayList<>();
+        for (int p : parents.get(ensure(id))) {
+            res.add(ids.get(p));
+        }
+        return res;
+    }
+
+    public int getGeneration(String id) {
+        return generations[ensure(id)];
+    }
+
+    /** Returns whether ANCESTOR is DESCENDANT itself or one of its ancestors.
+     *  Commits whose generation is below that of ANCESTOR cannot lead to it
+     *  and are not walked. */
+    public boolean isAncestor(String ancestor, String descendant) {
+        int target = ensure(ancestor);
+        int start = ensure(descendant);
+        int minGen = generations[target];
+        BitSet seen = new BitSet(ids.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        seen.set(start);
+        while (!stack.isEmpty()) {
+            int c = stack.pop();
+            if (c == target) {
+                return true;
+            }
+            for (int p : parents.get(c)) {
+                if (!seen.get(p) && generations[p] >= minGen) {
+                    seen.set(p);
+                    stack.push(p);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the best common ancestor of commits CURR and OTHER.
+     *  Both sides are painted down in decreasing generation order; a commit reached
+     *  from both is a common ancestor, and everything below it is stale. Of several
+     *  latest common ancestors (criss-cross history), the one closest to CURR wins.
+     *  Returns null if the two histories share no commit. */
+    public String mergeBase(String curr, String other) {
+        int a = ensure(curr);
+        int b = ensure(other);
+        int[] flags = new int[ids.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) ->
+                generations[x] != generations[y] ? generations[y] - generations[x] : y - x);
+        flags[a] |= PARENT1;
+        flags[b] |= PARENT2;
+        queue.add(a);
+        if (a != b) {
+            queue.add(b);
+        }
+        List<Integer> results = new ArrayList<>();
+        while (hasNonStale(queue, flags)) {
+            int c = queue.poll();
+            int f = flags[c] & (PARENT1 | PARENT2 | STALE);
+            if (f == (PARENT1 | PARENT2)) {
+                if ((flags[c] & RESULT) == 0) {
+                    flags[c] |= RESULT;
+                    results.add(c);
+                }
+                f |= STALE;
+            }
+            for (int p : parents.get(c)) {
+                if ((flags[p] & f) != f) {
+                    flags[p] |= f;
+                    queue.add(p);
+                }
+            }
+        }
+
+        // drop the results that are ancestors of other results
+        List<Integer> best = new ArrayList<>();
+        for (int r : results) {
+            boolean redundant = false;
+            for (int o : results) {
+                if (o != r && isAncestor(ids.get(r), ids.get(o))) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                best.add(r);
+            }
+        }
+        if (best.isEmpty()) {
+            return null;
+        } else if (best.size() == 1) {
+            return ids.get(best.get(0));
+        }
+        return ids.get(closestTo(a, best));
+    }
+
+    private static boolean hasNonStale(PriorityQueue<Integer> queue, int[] flags) {
+        for (int c : queue) {
+            if ((flags[c] & STALE) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the candidate with the fewest steps back from START
+    private int closestTo(int start, List<Integer> candidates) {
+        Set<Integer> wanted = new HashSet<>(candidates);
+        BitSet seen = new BitSet(ids.size());
+        Queue<Integer> level = new LinkedList<>();
+        level.add(start);
+        seen.set(start);
+        while (!level.isEmpty()) {
+            int c = level.remove();
+            if (wanted.contains(c)) {
+                return c;
+            }
+            for (int p : parents.get(c)) {
+                if (!seen.get(p)) {
+                    seen.set(p);
+                    level.add(p);
+                }
+            }
+        }
+        return candidates.get(0);
+    }
+
+}
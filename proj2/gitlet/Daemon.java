@@ -0,0 +1,209 @@
+package gitlet;
+import static gitlet.Utils.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Set;
+
+
+/** Represents a resident gitlet process serving the commands of one repository,
+ * so that they run in a JVM whose classes are loaded and whose object caches,
+ * pack index and commit-graph are already in memory.
+ *
+ * `gitlet daemon` listens on a loopback port and writes "port token" to
+ * .gitlet/daemon, readable by the owner only; `gitlet daemon stop` ends it.
+ * Client sends the token, its working directory and the arguments of a command,
+ * and gets back the exit code and everything written to System.out and System.err.
+ * Commands run one at a time, through the same dispatch as Main, so their output
+ * is the same; the ones that run until stopped are handed back to Client.
+ *
+ *  request:  token | working directory | argument count | arguments   (all UTF)
+ *  response: exit code | stdout length | stdout | stderr length | stderr
+ *
+ *  @author Grebeth.P
+ */
+public class Daemon {
+    /** The exit code telling Client to run the command itself. */
+    public static final int NOT_SERVED = -1;
+    private static final String STOP = "\0stop";
+    // how long a client that connected may take to send its request
+    private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+    // commands that run until stopped, and would keep the daemon from serving any other
+    private static final Set<String> LONG_RUNNING = Set.of("daemon", "watch");
+
+    /** Returns whether the command ARGS is one the daemon never runs. */
+    public static boolean runsLocally(String[] args) {
+        return args.length == 0 || LONG_RUNNING.contains(args[0]);
+    }
+
+    public static File daemonFile(File gitletDir) {
+        return join(gitletDir, "daemon");
+    }
+
+    public static void serve(File root, File gitletDir) {
+        byte[] raw = new byte[16];
+        new SecureRandom().nextBytes(raw);
+        String token = Codec.toHex(raw);
+
+        File daemonFile = daemonFile(gitletDir);
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            writeDaemonFile(daemonFile, server.getLocalPort() + " " + token);
+            System.out.printf("Serving %s on port %d.%n", root.getPath(), server.getLocalPort());
+            boolean running = true;
+            while (running) {
+                try (Socket client = server.accept()) {
+                    client.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                    running = handle(client, root, token);
+                } catch (IOException excp) {
+                    // a client that went away, or stalled before its request was read,
+                    // is dropped without stopping the daemon
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            daemonFile.delete();
+        }
+    }
+
+    private static void writeDaemonFile(File f, String contents) throws IOException {
+        f.delete();
+        Files.createFile(f.toPath());
+        try {
+            Files.setPosixFilePermissions(f.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException excp) {
+            // not a POSIX file system; the file keeps the default permissions
+        }
+        writeContents(f, contents);
+    }
+
+    // runs one request; returns false once asked to stop
+    private static boolean handle(Socket client, File root, String token) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(client.getOutputStream()));
+        if (!in.readUTF().equals(token)) {
+            return true;
+        }
+        String cwd = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        if (args.length == 1 && args[0].equals(STOP)) {
+            reply(out, 0, new byte[0], new byte[0]);
+            return false;
+        }
+        if (!new File(cwd).getAbsoluteFile().equals(root.getAbsoluteFile())
+                || runsLocally(args)) {
+            reply(out, NOT_SERVED, new byte[0], new byte[0]);
+            return true;
+        }
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        int code = 0;
+        System.setOut(new PrintStream(stdout, true, StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(stderr, true, StandardCharsets.UTF_8));
+        try {
+            // another process may have changed the repository since the last command
+            PackFile.forgetStale();
+            CommitGraph.forgetStale();
+            Main.execute(args);
+        } catch (RuntimeException | Error excp) {
+            // what the JVM does with an exception nobody caught
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            Repository.discardSession();
+            code = 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+        reply(out, code, stdout.toByteArray(), stderr.toByteArray());
+        return true;
+    }
+
+    private static void reply(DataOutputStream out, int code, byte[] stdout, byte[] stderr)
+            throws IOException {
+        out.writeInt(code);
+        out.writeInt(stdout.length);
+        out.write(stdout);
+        out.writeInt(stderr.length);
+        out.write(stderr);
+        out.flush();
+    }
+
+    /** Sends the command ARGS from the working directory CWD to the daemon of
+     *  GITLETDIR, prints what it wrote and returns its exit code, or NOT_SERVED
+     *  if no daemon is running or it does not serve CWD. Once the request is sent,
+     *  the daemon may have run the command, so losing the connection then is an
+     *  error rather than a reason to run it again. */
+    public static int send(File gitletDir, String cwd, String[] args) {
+        File daemonFile = daemonFile(gitletDir);
+        if (!daemonFile.isFile()) {
+            return NOT_SERVED;
+        }
+        String[] parts = readContentsAsString(daemonFile).trim().split(" ");
+        if (parts.length != 2) {
+            return NOT_SERVED;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(parts[0]));
+        } catch (IOException | NumberFormatException excp) {
+            // a stale daemon file; the command runs without the daemon
+            return NOT_SERVED;
+        }
+        try (socket) {
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                out.writeUTF(parts[1]);
+                out.writeUTF(cwd);
+                out.writeInt(args.length);
+                for (String arg : args) {
+                    out.writeUTF(arg);
+                }
+                out.flush();
+            } catch (IOException excp) {
+                // the daemon only runs a request it read whole
+                return NOT_SERVED;
+            }
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            int code = in.readInt();
+            byte[] stdout = new byte[in.readInt()];
+            in.readFully(stdout);
+            byte[] stderr = new byte[in.readInt()];
+            in.readFully(stderr);
+            System.out.write(stdout);
+            System.out.flush();
+            System.err.write(stderr);
+            System.err.flush();
+            return code;
+        } catch (IOException excp) {
+            throw error("Lost the connection to the daemon; the command may have run.");
+        }
+    }
+
+    public static void stop(File gitletDir) {
+        if (send(gitletDir, "", new String[]{STOP}) == NOT_SERVED) {
+            throw error("No daemon is running.");
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+package gitlet;
+import static gitlet.Utils.*;
+
+import java.io.ByteArrayOutputStream;
+
+
+/** Delta encoding of one version of a file against another, in the style of xdelta:
+ * the target is rebuilt from copies of ranges of the base and inserts of new bytes.
+ *
+ * The base is indexed by the hash of every BLOCK-byte block at a multiple of BLOCK;
+ * the target is scanned with a rolling hash of the same width, and every match is
+ * grown forward and backward as far as the bytes agree.
+ *
+ *  delta:  base size | target size | instructions          (sizes as varints)
+ *  copy:   0x80 | offset in the base | length              (both varints)
+ *  insert: length from 1 to 127 | that many new bytes
+ *
+ *  @author Grebeth.P
+ */
+class Delta {
+    private static final int BLOCK = 16;
+    private static final int MAX_INSERT = 127;
+    private static final int COPY = 0x80;
+    private static final int PRIME = 31;
+    // PRIME to the power BLOCK - 1, to take the leaving byte out of the rolling hash
+    private static final int LEAVING_FACTOR = pow(PRIME, BLOCK - 1);
+
+    /** Returns the delta that rebuilds TARGET from BASE. */
+    static byte[] encode(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        putVarint(out, base.length);
+        putVarint(out, target.length);
+        if (base.length < BLOCK || target.length < BLOCK) {
+            putInsert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+
+        // open addressing, so that a large base costs no boxed objects
+        int slots = Integer.highestOneBit(base.length / BLOCK * 2 + 1) * 2;
+        int[] table = new int[slots];
+        for (int off = 0; off + BLOCK <= base.length; off += BLOCK) {
+            int slot = hash(base, off) & (slots - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            table[slot] = off + 1;
+        }
+
+        int pending = 0; // start of the bytes not yet covered by an instruction
+        int i = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            int match = find(table, base, h, target, i);
+            if (match < 0) {
+                if (i + BLOCK < target.length) {
+                    h = (h - (target[i] & 0xff) * LEAVING_FACTOR) * PRIME
+                            + (target[i + BLOCK] & 0xff);
+                }
+                i++;
+                continue;
+            }
+            int off = match;
+            int len = BLOCK;
+            while (off + len < base.length && i + len < target.length
+                    && base[off + len] == target[i + len]) {
+                len++;
+            }
+            while (off > 0 && i > pending && base[off - 1] == target[i - 1]) {
+                off--;
+                i--;
+                len++;
+            }
+            putInsert(out, target, pending, i);
+            out.write(COPY);
+            putVarint(out, off);
+            putVarint(out, len);
+            i += len;
+            pending = i;
+            if (i + BLOCK <= target.length) {
+                h = hash(target, i);
+            }
+        }
+        putInsert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the target rebuilt from BASE and DELTA. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        if (getVarint(delta, pos) != base.length) {
+            throw error("Delta does not match its base");
+        }
+        byte[] res = new byte[(int) getVarint(delta, pos)];
+        int n = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++] & 0xff;
+            if (op == COPY) {
+                int off = (int) getVarint(delta, pos);
+                int len = (int) getVarint(delta, pos);
+                System.arraycopy(base, off, res, n, len);
+                n += len;
+            } else {
+                System.arraycopy(delta, pos[0], res, n, op);
+                pos[0] += op;
+                n += op;
+            }
+        }
+        if (n != res.length) {
+            throw error("Delta does not match its base");
+        }
+        return res;
+    }
+
+    // the offset of a block of BASE equal to the one of TARGET at I, or -1
+    private static int find(int[] table, byte[] base, int h, byte[] target, int i) {
+        int slot = h & (table.length - 1);
+        while (table[slot] != 0) {
+            int off = table[slot] - 1;
+            if (sameBlock(base, off, target, i)) {
+                return off;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    private static boolean sameBlock(byte[] a, int aOff, byte[] b, int bOff) {
+        for (int k = 0; k < BLOCK; k++) {
+            if (a[aOff + k] != b[bOff + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int off) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            h = h * PRIME + (bytes[off + k] & 0xff);
+        }
+        return h;
+    }
+
+    private static int pow(int b, int e) {
+        int res = 1;
+        for (int k = 0; k < e; k++) {
+            res *= b;
+        }
+        return res;
+    }
+
+    private static void putInsert(ByteArrayOutputStream out, byte[] bytes, int from, int to) {
+        while (from < to) {
+            int len = Math.min(MAX_INSERT, to - from);
+            out.write(len);
+            out.write(bytes, from, len);
+            from += len;
+        }
+    }
+
+    private static void putVarint(ByteArrayOutputStream out, long n) {
+        while (n >= 0x80) {
+            out.write((int) (n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    private static long getVarint(byte[] bytes, int[] pos) {
+        long res = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = bytes[pos[0]++] & 0xff;
+            res |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return res;
+    }
+
+}
@@ -0,0 +1,226 @@
+package gitlet;
+
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+
+/** Line diff of two versions of a file, by Myers' O(ND) algorithm in its
+ * linear-space form: the middle snake of the edit graph is found by searching
+ * forward from the start and backward from the end at once, and the two halves
+ * on either side of it are diffed in turn. Only two rows of the graph, of
+ * N + M entries each, are kept at any time.
+ *
+ * Lines keep their terminator, so a last line without a newline differs from
+ * the same line with one. Each distinct line is numbered once up front, so the
+ * search compares ints.
+ *
+ *  @author Grebeth.P
+ */
+class Diff {
+
+    /** The lines [aStart, aEnd) of the old version replaced by the lines
+     *  [bStart, bEnd) of the new one; either range may be empty. */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Returns the lines of CONTENT, each with its '\n' if it has one. */
+    static List<String> lines(byte[] content) {
+        String s = new String(content, StandardCharsets.UTF_8);
+        List<String> res = new ArrayList<>();
+        int start = 0;
+        while (start < s.length()) {
+            int end = s.indexOf('\n', start);
+            end = end < 0 ? s.length() : end + 1;
+            res.add(s.substring(start, end));
+            start = end;
+        }
+        return res;
+    }
+
+    /** Returns the hunks turning A into B, in order, none of them adjacent. */
+    static List<Hunk> diff(List<String> a, List<String> b) {
+        HashMap<String, Integer> numbers = new HashMap<>();
+        int[] x = number(a, numbers);
+        int[] y = number(b, numbers);
+        List<Hunk> raw = new ArrayList<>();
+        compare(x, 0, x.length, y, 0, y.length, raw);
+
+        // the halves of a split may each end in a hunk at the split point
+        List<Hunk> res = new ArrayList<>();
+        for (Hunk h : raw) {
+            Hunk last = res.isEmpty() ? null : res.get(res.size() - 1);
+            if (last != null && last.aEnd == h.aStart && last.bEnd == h.bStart) {
+                res.set(res.size() - 1, new Hunk(last.aStart, h.aEnd, last.bStart, h.bEnd));
+            } else {
+                res.add(h);
+            }
+        }
+        return res;
+    }
+
+    private static int[] number(List<String> lines, HashMap<String, Integer> numbers) {
+        int[] res = new int[lines.size()];
+        for (int i = 0; i < res.length; i++) {
+            Integer n = numbers.get(lines.get(i));
+            if (n == null) {
+                n = numbers.size();
+                numbers.put(lines.get(i), n);
+            }
+            res[i] = n;
+        }
+        return res;
+    }
+
+    private static void compare(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                                List<Hunk> out) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi) {
+                out.add(new Hunk(aLo, aHi, bLo, bHi));
+            }
+            return;
+        }
+        int[] split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+        if (split == null) {
+            out.add(new Hunk(aLo, aHi, bLo, bHi));
+            return;
+        }
+        compare(a, aLo, aLo + split[0], b, bLo, bLo + split[1], out);
+        compare(a, aLo + split[0], aHi, b, bLo + split[1], bHi, out);
+    }
+
+    // a point (x, y), relative to (aLo, bLo), on an edit script of least length
+    // that splits it into two shorter ones; null when the ranges share no line
+    private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        // furthest x reached on each diagonal k = x - y, going forward from the start
+        // and, in reversed coordinates, backward from the end
+        int[] forward = new int[2 * max + 3];
+        int[] backward = new int[2 * max + 3];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        // diagonals that ran off the edit graph are not searched again
+        int fStart = 0;
+        int fEnd = 0;
+        int bStart = 0;
+        int bEnd = 0;
+
+        for (int d = 0; d < max; d++) {
+            for (int k = -d + fStart; k <= d - fEnd; k += 2) {
+                int i = offset + k;
+                int x = (k == -d || (k != d && forward[i - 1] < forward[i + 1]))
+                        ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    fEnd += 2;
+                } else if (y > m) {
+                    fStart += 2;
+                } else if (odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < backward.length && backward[j] != -1
+                            && x >= n - backward[j]) {
+                        return new int[]{x, y};
+                    }
+                }
+            }
+            for (int k = -d + bStart; k <= d - bEnd; k += 2) {
+                int i = offset + k;
+                int x = (k == -d || (k != d && backward[i - 1] < backward[i + 1]))
+                        ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    bEnd += 2;
+                } else if (y > m) {
+                    bStart += 2;
+                } else if (!odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < forward.length && forward[j] != -1) {
+                        int fx = forward[j];
+                        int fy = fx - (delta - k);
+                        if (fx >= n - x) {
+                            return new int[]{fx, fy};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Writes the hunks turning A into B to OUT in unified format without context
+     *  lines, one hunk at a time, after the header lines "--- FROM" and "+++ TO". */
+    static void writeUnified(String from, String to, List<String> a, List<String> b,
+                             PrintWriter out) {
+        out.println("--- " + from);
+        out.println("+++ " + to);
+        for (Hunk h : diff(a, b)) {
+            out.println("@@ -" + range(h.aStart, h.aEnd) + " +" + range(h.bStart, h.bEnd) + " @@");
+            for (int i = h.aStart; i < h.aEnd; i++) {
+                writeLine('-', a.get(i), out);
+            }
+            for (int i = h.bStart; i < h.bEnd; i++) {
+                writeLine('+', b.get(i), out);
+            }
+        }
+    }
+
+    // "start,count", where an empty range starts at the line before it
+    // and a count of 1 is left out
+    private static String range(int start, int end) {
+        int count = end - start;
+        if (count == 0) {
+            return start + ",0";
+        }
+        return count == 1 ? String.valueOf(start + 1) : (start + 1) + "," + count;
+    }
+
+    private static void writeLine(char prefix, String line, PrintWriter out) {
+        out.print(prefix);
+        if (line.endsWith("\n")) {
+            out.print(line);
+        } else {
+            out.println(line);
+            out.println("\\ No newline at end of file");
+        }
+    }
+
+}
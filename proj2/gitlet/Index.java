@@ -3,49 +3,336 @@ import static gitlet.Repository.*;
 import static gitlet.Utils.*;
 
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 
 /** Represents a gitlet index / staging area,
  * it's an object built up to easily edit the index file
  * but not like Blob / Commit serving as key components in the DAG graph
+ *
+ * Besides the staged files, the index caches the stat data (size, mtime, file key)
+ * of every working file it has hashed, so that a file whose stat data is unchanged
+ * does not need to be read again to know its blob ID.
+ *
+ *  index:  "GINX" | version | staged for addition | staged for removal
+ *          | stat count | stat count * offset | stat entries | SHA-1 of all before
+ *  staged: count | count * (path | blob ID)            (Codec strings and IDs)
+ *  stat:   path | size | mtime | recorded at | blob ID | file key
+ *
+ * The staged files are few and read whole. The stat entries, one per working file,
+ * are sorted by the UTF-8 bytes of their path and left in the mapped file: a lookup
+ * is a bisection over their offsets, and the entries changed since the index was
+ * read are kept aside until it is saved. Saving merges the two, copying the runs of
+ * unchanged entries as they are, into index.lock, which also keeps a second writer
+ * out, and renames it over the index.
+ *
  *  @author Grebeth.P
  */
-public class Index implements Serializable {
-    // two hashmaps are utilized to save to_add files and to_remove files for easier retrieving
-    private HashMap<String, String> stagedToAddFiles = new HashMap<>();
-    private HashMap<String, String> stagedToRemoveFiles = new HashMap<>();
+public class Index {
+    private static final int VERSION = 2;
+    private static final byte[] MAGIC = {'G', 'I', 'N', 'X'};
+    private static final int CHECKSUM_SIZE = 20;
 
-    public void stageToAdd(Blob b) {
-        stagedToAddFiles.put(b.getFilePath(), b.getID());
+    // two sorted maps are utilized to save to_add files and to_remove files for easier retrieving
+    private final TreeMap<String, String> stagedToAddFiles = new TreeMap<>();
+    private final TreeMap<String, String> stagedToRemoveFiles = new TreeMap<>();
+    // the index file as read, null for a new index, and where its stat entries are
+    private ByteBuffer mapped;
+    private int statCount;
+    private int offsetsPos;
+    private int statEnd;
+    // a map from filepath to the stat data recorded since the index was read,
+    // or to null for the entries forgotten since
+    private final HashMap<String, FileStat> statChanges = new HashMap<>();
+    // whether the stat data changed since the index was read, so the index is worth saving
+    private boolean statCacheChanged;
+    // the paths the watcher saw unchanged since its baseline, whose stat data is
+    // then right without being taken again; null when there is no watcher
+    private Predicate<String> unchanged;
+
+    private static class FileStat {
+        private long size;
+        private long mtime;
+        private String fileKey;
+        private String blobID;
+        // wall-clock time the stat data was taken at
+        private long recordedAt;
+
+        private boolean matches(FileStat other) {
+            return size == other.size && mtime == other.mtime
+                    && fileKey.equals(other.fileKey);
+        }
+
+        // a file modified within the same second its stat data was taken may be
+        // modified again without its mtime changing, so such entries are not trusted
+        private boolean isRacy() {
+            return mtime / 1000 >= recordedAt / 1000;
+        }
+    }
+
+    public void stageToAdd(String filePath, String blobID) {
+        stagedToAddFiles.put(filePath, blobID);
     }
 
     public void removeFromStagedToAdd(String filePath) {
         stagedToAddFiles.remove(filePath);
     }
 
-    public void stagedToRemove(Blob b) {
-        restrictedDelete(b.getFileInCWD());
-        stagedToRemoveFiles.put(b.getFilePath(), b.getID());
+    public void stagedToRemove(String filePath, String blobID) {
+        WorkingTree.delete(new File(filePath), CWD);
+        stagedToRemoveFiles.put(filePath, blobID);
+        forgetStat(filePath);
     }
 
     public void removeFromStagedToRemove(String filePath) {
         stagedToRemoveFiles.remove(filePath);
     }
 
-    public HashMap<String, String> getStagedToAdd() {
-        return new HashMap<>(stagedToAddFiles);
+    public boolean isStagedToRemove(String filePath) {
+        return stagedToRemoveFiles.containsKey(filePath);
+    }
+
+    // read-only views, sorted by path
+    public Map<String, String> getStagedToAdd() {
+        return Collections.unmodifiableMap(stagedToAddFiles);
     }
 
-    public HashMap<String, String> getStagedToRemove() {
-        return new HashMap<>(stagedToRemoveFiles);
+    public Map<String, String> getStagedToRemove() {
+        return Collections.unmodifiableMap(stagedToRemoveFiles);
     }
 
-    // save the index by serialization to index file in .gitlet
+    // save the index to the index file in .gitlet
     public void saveIndex() {
-        File outFile = Utils.join(GITLET_DIR, "index");
-        writeObject(outFile, this);
+        saveIndex(Utils.join(GITLET_DIR, "index"));
+    }
+
+    public void saveIndex(File outFile) {
+        File lock = new File(outFile.getPath() + ".lock");
+        try {
+            Files.createFile(lock.toPath());
+        } catch (IOException excp) {
+            throw error("Unable to lock %s; is another gitlet command running?", lock.getPath());
+        }
+        try {
+            try (FileChannel out = FileChannel.open(lock.toPath(), StandardOpenOption.WRITE)) {
+                write(out);
+            }
+            Files.move(lock.toPath(), outFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            lock.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        statCacheChanged = false;
+    }
+
+    public static Index readIndex(File inFile) {
+        Index res = new Index();
+        try (FileChannel ch = FileChannel.open(inFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.limit() < MAGIC.length + CHECKSUM_SIZE
+                    || !buf.slice().limit(MAGIC.length).equals(ByteBuffer.wrap(MAGIC))) {
+                throw error("Corrupted index %s", inFile.getPath());
+            }
+            int end = buf.limit() - CHECKSUM_SIZE;
+            MessageDigest digest = MyUtils.newDigest();
+            digest.update(buf.duplicate().limit(end));
+            if (!ByteBuffer.wrap(digest.digest()).equals(buf.duplicate().position(end))) {
+                throw error("Corrupted index %s", inFile.getPath());
+            }
+            buf.position(MAGIC.length);
+            Codec.checkVersion(buf, VERSION, "index");
+            decodeStaged(buf, res.stagedToAddFiles);
+            decodeStaged(buf, res.stagedToRemoveFiles);
+            res.statCount = buf.getInt();
+            res.offsetsPos = buf.position();
+            res.statEnd = end;
+            res.mapped = buf;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return res;
+    }
+
+    private static void decodeStaged(ByteBuffer in, TreeMap<String, String> staged) {
+        int n = in.getInt();
+        for (int i = 0; i < n; i++) {
+            String path = Codec.getString(in);
+            staged.put(path, Codec.getID(in));
+        }
+    }
+
+    private static void encodeStaged(Codec.Encoder out, TreeMap<String, String> staged) {
+        out.putInt(staged.size());
+        for (Map.Entry<String, String> e : staged.entrySet()) {
+            out.putString(e.getKey()).putID(e.getValue());
+        }
+    }
+
+    // merges the stat entries read with the ones changed since, both in path order;
+    // the runs of entries read and not changed are written straight from the mapping
+    private void write(FileChannel out) throws IOException {
+        List<byte[]> changedPaths = new ArrayList<>();
+        for (String path : statChanges.keySet()) {
+            changedPaths.add(path.getBytes(StandardCharsets.UTF_8));
+        }
+        changedPaths.sort(Index::compareBytes);
+
+        List<Object> pieces = new ArrayList<>(); // encoded entries, or {from, to} of the mapping
+        int[] offsets = new int[statCount + changedPaths.size()];
+        int count = 0;
+        int length = 0; // of the entries so far
+        int i = 0;
+        int j = 0;
+        while (i < statCount || j < changedPaths.size()) {
+            int cmp = i == statCount ? 1 : j == changedPaths.size() ? -1
+                    : -compareToEntry(changedPaths.get(j), i);
+            if (cmp < 0) {
+                int from = entryStart(i);
+                int to = entryEnd(i++);
+                Object last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                if (last instanceof int[] && ((int[]) last)[1] == from) {
+                    ((int[]) last)[1] = to;
+                } else {
+                    pieces.add(new int[]{from, to});
+                }
+                offsets[count++] = length;
+                length += to - from;
+                continue;
+            }
+            if (cmp == 0) {
+                i++; // replaced or forgotten
+            }
+            byte[] path = changedPaths.get(j++);
+            FileStat stat = statChanges.get(new String(path, StandardCharsets.UTF_8));
+            if (stat != null) {
+                byte[] entry = encodeStat(path, stat);
+                pieces.add(entry);
+                offsets[count++] = length;
+                length += entry.length;
+            }
+        }
+
+        Codec.Encoder head = new Codec.Encoder().putBytes(MAGIC).putByte(VERSION);
+        encodeStaged(head, stagedToAddFiles);
+        encodeStaged(head, stagedToRemoveFiles);
+        head.putInt(count);
+        int entriesPos = head.toByteArray().length + 4 * count;
+        ByteBuffer header = ByteBuffer.allocate(entriesPos).put(head.toByteArray());
+        for (int k = 0; k < count; k++) {
+            header.putInt(entriesPos + offsets[k]);
+        }
+        MessageDigest digest = MyUtils.newDigest();
+        writeAll(out, header.flip(), digest);
+        for (Object piece : pieces) {
+            if (piece instanceof byte[]) {
+                writeAll(out, ByteBuffer.wrap((byte[]) piece), digest);
+            } else {
+                int[] range = (int[]) piece;
+                writeAll(out, mapped.duplicate().limit(range[1]).position(range[0]), digest);
+            }
+        }
+        writeAll(out, ByteBuffer.wrap(digest.digest()), null);
+    }
+
+    private static void writeAll(FileChannel out, ByteBuffer buf, MessageDigest digest)
+            throws IOException {
+        if (digest != null) {
+            digest.update(buf.duplicate());
+        }
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static byte[] encodeStat(byte[] path, FileStat stat) {
+        return new Codec.Encoder().putInt(path.length).putBytes(path)
+                .putLong(stat.size).putLong(stat.mtime).putLong(stat.recordedAt)
+                .putID(stat.blobID).putString(stat.fileKey).toByteArray();
+    }
+
+    private int entryStart(int i) {
+        return mapped.getInt(offsetsPos + 4 * i);
+    }
+
+    private int entryEnd(int i) {
+        return i + 1 < statCount ? entryStart(i + 1) : statEnd;
+    }
+
+    // compares PATH with the path of the i-th stat entry read, without decoding it
+    private int compareToEntry(byte[] path, int i) {
+        int pos = entryStart(i);
+        int length = mapped.getInt(pos);
+        pos += 4;
+        for (int k = 0; k < Math.min(length, path.length); k++) {
+            int cmp = Integer.compare(path[k] & 0xff, mapped.get(pos + k) & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(path.length, length);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int k = 0; k < Math.min(a.length, b.length); k++) {
+            int cmp = Integer.compare(a[k] & 0xff, b[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    // the stat data of FILEPATH, changed since the index was read or found by bisection
+    private FileStat statFor(String filePath) {
+        if (statChanges.containsKey(filePath)) {
+            return statChanges.get(filePath);
+        }
+        byte[] path = filePath.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = statCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareToEntry(path, mid);
+            if (cmp == 0) {
+                return decodeStat(entryStart(mid) + 4 + path.length);
+            } else if (cmp < 0) {
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return null;
+    }
+
+    private FileStat decodeStat(int pos) {
+        ByteBuffer in = mapped.duplicate().position(pos);
+        FileStat res = new FileStat();
+        res.size = in.getLong();
+        res.mtime = in.getLong();
+        res.recordedAt = in.getLong();
+        res.blobID = Codec.getID(in);
+        res.fileKey = Codec.getString(in);
+        return res;
     }
 
     public void clearStagingArea() {
@@ -53,4 +340,123 @@ public class Index implements Serializable {
         stagedToRemoveFiles.clear();
     }
 
+    // the blob ID of file F, rehashing it only if its stat data changed since it was last hashed
+    public String blobIDOf(File f) {
+        String cached = cachedBlobID(f);
+        if (cached != null) {
+            return cached;
+        }
+        FileStat before = statOf(f);
+        String id = Blob.idOf(f);
+        recordStat(f.getPath(), before, id);
+        return id;
+    }
+
+    /** Returns a map from path to blob ID for all of FILES. The files whose stat
+     *  data changed are hashed in parallel; their new stat data is recorded after. */
+    public HashMap<String, String> blobIDsOf(Collection<File> files) {
+        HashMap<String, String> res = new HashMap<>();
+        List<File> toHash = new ArrayList<>();
+        // the stat data is taken in parallel as well; nothing is recorded meanwhile
+        List<String[]> cached = files.parallelStream()
+                .map(f -> new String[]{f.getPath(), cachedBlobID(f)})
+                .collect(Collectors.toList());
+        for (String[] c : cached) {
+            if (c[1] != null) {
+                res.put(c[0], c[1]);
+            } else {
+                toHash.add(new File(c[0]));
+            }
+        }
+        // stat data is taken before hashing, so a write in between makes it stale, not wrong
+        List<Object[]> hashed = toHash.parallelStream()
+                .map(f -> new Object[]{f, statOf(f), Blob.idOf(f)})
+                .collect(Collectors.toList());
+        for (Object[] h : hashed) {
+            File f = (File) h[0];
+            recordStat(f.getPath(), (FileStat) h[1], (String) h[2]);
+            res.put(f.getPath(), (String) h[2]);
+        }
+        return res;
+    }
+
+    // the blob ID recorded for file F if its stat data is unchanged and trustworthy, else null
+    public String cachedBlobID(File f) {
+        FileStat cached = statFor(f.getPath());
+        if (cached != null && unchanged != null && unchanged.test(f.getPath())) {
+            return cached.blobID;
+        } else if (cached == null || cached.isRacy()) {
+            return null;
+        }
+        FileStat now = statOf(f);
+        return now != null && cached.matches(now) ? cached.blobID : null;
+    }
+
+    /** Trusts the stat data of the files whose absolute path UNCHANGED accepts,
+     *  for commands that write no file themselves. */
+    public void trustUnchanged(Predicate<String> unchangedPaths) {
+        unchanged = unchangedPaths;
+    }
+
+    /** Forgets the stat data of every file but those in KEEP, so that a watcher
+     *  baseline only vouches for stat data that was just checked. */
+    public void retainStats(Set<String> keep) {
+        for (int i = 0; i < statCount; i++) {
+            int pos = entryStart(i);
+            byte[] path = new byte[mapped.getInt(pos)];
+            mapped.duplicate().position(pos + 4).get(path);
+            String filePath = new String(path, StandardCharsets.UTF_8);
+            if (!keep.contains(filePath) && !statChanges.containsKey(filePath)) {
+                statChanges.put(filePath, null);
+                statCacheChanged = true;
+            }
+        }
+        for (Map.Entry<String, FileStat> e : statChanges.entrySet()) {
+            if (e.getValue() != null && !keep.contains(e.getKey())) {
+                e.setValue(null);
+                statCacheChanged = true;
+            }
+        }
+    }
+
+    // records that file F currently holds the blob with the given ID
+    public void recordStat(File f, String blobID) {
+        recordStat(f.getPath(), statOf(f), blobID);
+    }
+
+    private void recordStat(String filePath, FileStat stat, String blobID) {
+        if (stat == null) {
+            forgetStat(filePath);
+            return;
+        }
+        stat.blobID = blobID;
+        statChanges.put(filePath, stat);
+        statCacheChanged = true;
+    }
+
+    public void forgetStat(String filePath) {
+        if (statFor(filePath) != null) {
+            statChanges.put(filePath, null);
+            statCacheChanged = true;
+        }
+    }
+
+    public boolean isStatCacheChanged() {
+        return statCacheChanged;
+    }
+
+    private static FileStat statOf(File f) {
+        try {
+            FileStat res = new FileStat();
+            res.recordedAt = System.currentTimeMillis();
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            res.size = attrs.size();
+            res.mtime = attrs.lastModifiedTime().toMillis();
+            res.fileKey = String.valueOf(attrs.fileKey());
+            return res;
+        } catch (IOException excp) {
+            return null; // file is gone
+        }
+    }
+
 }
@@ -1,5 +1,8 @@
 package gitlet;
 import static gitlet.Repository.*;
+import static gitlet.Utils.*;
+
+import java.util.Arrays;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *
@@ -14,10 +17,28 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
+        execute(args);
+    }
+
+    /** Runs the command ARGS, writing its output to System.out. Commands that stop
+     *  early throw a GitletException carrying what they have to say; whatever they
+     *  changed in memory is dropped, as it was when they used to exit right away. */
+    public static void execute(String[] args) {
+        try {
+            dispatch(args);
+            Repository.closeSession();
+        } catch (GitletException excp) {
+            if (excp.getMessage() != null) {
+                System.out.println(excp.getMessage());
+            }
+            Repository.discardSession();
+        }
+    }
+
+    private static void dispatch(String[] args) {
         // check if args are empty
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throw error("Please enter a command.");
         }
 
         String firstArg = args[0];
@@ -27,8 +48,11 @@ public class Main {
                 Repository.initiateGitlet();
                 break;
             case "add":
-                validateNumArgs("add", args, 2);
-                Repository.addToStage(args[1]);
+                if (args.length < 2) {
+                    validateNumArgs("add", args, 2);
+                }
+                checkFolderExistence();
+                Repository.addToStage(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 validateNumArgs("commit", args, 2);
@@ -47,6 +71,12 @@ public class Main {
                 Repository.displayGlobalLog();
                 break;
             case "find":
+                if (args.length == 3
+                        && (args[1].equals("--token") || args[1].equals("--prefix"))) {
+                    checkFolderExistence();
+                    Repository.findCommitsWithOption(args[1], args[2]);
+                    break;
+                }
                 validateNumArgs("find", args, 2);
                 Repository.findCommitsWithMsg(args[1]);
                 break;
@@ -54,6 +84,13 @@ public class Main {
                 validateNumArgs("status", args, 1);
                 Repository.displayStatus();
                 break;
+            case "diff":
+                if (args.length > 3) {
+                    validateNumArgs("diff", args, 3);
+                }
+                checkFolderExistence();
+                Repository.displayDiff(Arrays.copyOfRange(args, 1, args.length));
+                break;
             case "checkout":
                 if ((args.length == 3 && !args[1].equals("--"))
                         || (args.length == 4 && !args[2].equals("--"))){
@@ -85,6 +122,10 @@ public class Main {
                 validateNumArgs("merge", args, 2);
                 Repository.mergeToBranch(args[1]);
                 break;
+            case "gc":
+                validateNumArgs("gc", args, 1);
+                Repository.gc();
+                break;
             case "test":
                 validateNumArgs("test", args, 2);
                 Repository.test(args[1]);
@@ -109,6 +150,24 @@ public class Main {
                 validateNumArgs("fetch", args, 3);
                 Repository.fetch(args[1], args[2]);
                 break;
+            case "daemon":
+                if (args.length == 2 && args[1].equals("stop")) {
+                    checkFolderExistence();
+                    Daemon.stop(GITLET_DIR);
+                    break;
+                }
+                validateNumArgs("daemon", args, 1);
+                Daemon.serve(CWD, GITLET_DIR);
+                break;
+            case "watch":
+                if (args.length == 2 && args[1].equals("stop")) {
+                    checkFolderExistence();
+                    Watcher.stop(GITLET_DIR);
+                    break;
+                }
+                validateNumArgs("watch", args, 1);
+                Watcher.watch(CWD, GITLET_DIR);
+                break;
             default:
                 System.out.println("No command with that name exists");
                 break;
@@ -117,21 +176,20 @@ public class Main {
 
     public static void validateNumArgs(String cmd, String[] args, int n) {
         if (args.length != n) {
+            // printed here, as this message has never ended with a newline
             System.out.printf("Invalid number of arguments for: %s.", cmd);
-            System.exit(0);
+            throw new GitletException();
         } else if (!cmd.equals("init")) {
             checkFolderExistence();
         }
         if (cmd.equals("add-remote")) {
             if (!args[2].endsWith("/.gitlet")) {
-                System.out.println("Invalid server repository name.");
-                System.exit(0);
+                throw error("Invalid server repository name.");
             }
         }
     }
 
     public static void invalidOperand() {
-        System.out.println("Incorrect operands.");
-        System.exit(0);
+        throw error("Incorrect operands.");
     }
 }
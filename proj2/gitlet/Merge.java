@@ -0,0 +1,104 @@
+package gitlet;
+
+import java.util.List;
+
+
+/** Line-level three-way merge of two versions of a file against the version
+ * they both come from, in the manner of diff3: each side is diffed against the
+ * base, and the base is walked once, taking every run of lines only one side
+ * changed from that side. A run both sides changed, or that touches a change
+ * of the other side, is a conflict unless both made the same change; only such
+ * runs are written between conflict markers.
+ *
+ *  @author Grebeth.P
+ */
+class Merge {
+    private final StringBuilder content = new StringBuilder();
+    private boolean conflicted;
+
+    /** Merges OURS and THEIRS, both derived from BASE. */
+    Merge(List<String> base, List<String> ours, List<String> theirs) {
+        List<Diff.Hunk> oursHunks = Diff.diff(base, ours);
+        List<Diff.Hunk> theirsHunks = Diff.diff(base, theirs);
+        int i = 0;
+        int j = 0;
+        int copied = 0; // lines of the base already dealt with
+        while (i < oursHunks.size() || j < theirsHunks.size()) {
+            // the next change, then every change of either side overlapping the run so far
+            int firstOurs = i;
+            int firstTheirs = j;
+            int lo;
+            int hi;
+            if (j == theirsHunks.size() || (i < oursHunks.size()
+                    && oursHunks.get(i).aStart <= theirsHunks.get(j).aStart)) {
+                lo = oursHunks.get(i).aStart;
+                hi = oursHunks.get(i++).aEnd;
+            } else {
+                lo = theirsHunks.get(j).aStart;
+                hi = theirsHunks.get(j++).aEnd;
+            }
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                if (i < oursHunks.size() && oursHunks.get(i).aStart <= hi) {
+                    hi = Math.max(hi, oursHunks.get(i++).aEnd);
+                    grew = true;
+                }
+                if (j < theirsHunks.size() && theirsHunks.get(j).aStart <= hi) {
+                    hi = Math.max(hi, theirsHunks.get(j++).aEnd);
+                    grew = true;
+                }
+            }
+
+            append(base, copied, lo);
+            copied = hi;
+            if (firstTheirs == j) {
+                content.append(side(ours, oursHunks, firstOurs, i, lo, hi));
+            } else if (firstOurs == i) {
+                content.append(side(theirs, theirsHunks, firstTheirs, j, lo, hi));
+            } else {
+                String oursRun = side(ours, oursHunks, firstOurs, i, lo, hi);
+                String theirsRun = side(theirs, theirsHunks, firstTheirs, j, lo, hi);
+                if (oursRun.equals(theirsRun)) {
+                    content.append(oursRun);
+                } else {
+                    conflicted = true;
+                    content.append("<<<<<<< HEAD\n").append(oursRun)
+                            .append("=======\n").append(theirsRun).append(">>>>>>>\n");
+                }
+            }
+        }
+        append(base, copied, base.size());
+    }
+
+    /** Returns the merged file, with conflict markers around what could not be merged. */
+    String getContent() {
+        return content.toString();
+    }
+
+    boolean isConflicted() {
+        return conflicted;
+    }
+
+    private void append(List<String> lines, int from, int to) {
+        for (int k = from; k < to; k++) {
+            content.append(lines.get(k));
+        }
+    }
+
+    // what the lines [lo, hi) of the base became on a side whose hunks
+    // [first, last), at least one, fall in them; lines around the hunks are unchanged
+    private static String side(List<String> side, List<Diff.Hunk> hunks, int first, int last,
+                               int lo, int hi) {
+        Diff.Hunk head = hunks.get(first);
+        Diff.Hunk tail = hunks.get(last - 1);
+        int from = head.bStart - (head.aStart - lo);
+        int to = tail.bEnd + (hi - tail.aEnd);
+        StringBuilder sb = new StringBuilder();
+        for (int k = from; k < to; k++) {
+            sb.append(side.get(k));
+        }
+        return sb.toString();
+    }
+
+}
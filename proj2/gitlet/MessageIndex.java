@@ -0,0 +1,314 @@
+package gitlet;
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/** Represents the inverted index of commit messages kept in .gitlet/messages,
+ * so that find answers from a lookup instead of scanning the object store.
+ *
+ * It maps every full message, and every token of every message, to the IDs
+ * of the commits carrying it. Tokens are the lowercased runs of letters and digits.
+ * Commits are added by commit, fetch and push; a repository without the file, or
+ * with one of another format, gets it rebuilt from its commits the first time it
+ * is needed.
+ *
+ *  messages: "GMSG" | version | message count | token count
+ *            | message count * offset | token count * offset | entries
+ *  entry:    key length | key | ID count | IDs
+ *
+ * Both tables are sorted by the UTF-8 bytes of their keys and left in the mapped
+ * file: an exact lookup is a bisection over the offsets, and a prefix lookup the
+ * run of entries from there on, so find only decodes the entries it prints. The IDs
+ * added since the file was read are kept aside until it is saved. Saving merges the
+ * two, copying the runs of unchanged entries as they are, into messages.lock, and
+ * renames it over the file.
+ *
+ *  @author Grebeth.P
+ */
+public class MessageIndex {
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'M', 'S', 'G'};
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+
+    private final Table byMessage = new Table();
+    private final Table byToken = new Table();
+    // the file as read, null for a new index
+    private ByteBuffer mapped;
+
+    /** Returns the message index of the repository in GITLETDIR. */
+    public static MessageIndex load(File gitletDir) {
+        File f = join(gitletDir, "messages");
+        if (f.isFile()) {
+            MessageIndex res = new MessageIndex();
+            if (res.read(f)) {
+                return res;
+            }
+        }
+        MessageIndex res = new MessageIndex();
+        File objectDir = join(gitletDir, "objects");
+        for (String id : allObjectIDs(objectDir)) {
+            if (objectType(id, objectDir) == COMMIT_TYPE) {
+                res.add(getCommitbyID(id, objectDir));
+            }
+        }
+        res.save(gitletDir);
+        return res;
+    }
+
+    // maps F; false if it is not a message index, e.g. one serialized by an older gitlet
+    private boolean read(File f) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.limit() < HEADER_SIZE
+                    || !buf.slice(0, MAGIC.length).equals(ByteBuffer.wrap(MAGIC))) {
+                return false;
+            }
+            buf.position(MAGIC.length);
+            Codec.checkVersion(buf, VERSION, "message index");
+            byMessage.count = buf.getInt();
+            byToken.count = buf.getInt();
+            byMessage.offsetsPos = HEADER_SIZE;
+            byToken.offsetsPos = HEADER_SIZE + 4 * byMessage.count;
+            mapped = buf;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return true;
+    }
+
+    public void save(File gitletDir) {
+        File f = join(gitletDir, "messages");
+        if (mapped != null && byMessage.added.isEmpty()) {
+            return;
+        }
+        List<Object> pieces = new ArrayList<>(); // encoded entries, or {from, to} of the mapping
+        int[] length = {0};
+        int[] messageOffsets = byMessage.merge(pieces, length);
+        int[] tokenOffsets = byToken.merge(pieces, length);
+        int entriesPos = HEADER_SIZE + 4 * (messageOffsets.length + tokenOffsets.length);
+        ByteBuffer header = ByteBuffer.allocate(entriesPos).put(MAGIC).put((byte) VERSION)
+                .putInt(messageOffsets.length).putInt(tokenOffsets.length);
+        for (int offset : messageOffsets) {
+            header.putInt(entriesPos + offset);
+        }
+        for (int offset : tokenOffsets) {
+            header.putInt(entriesPos + offset);
+        }
+
+        File lock = new File(f.getPath() + ".lock");
+        try {
+            Files.createFile(lock.toPath());
+        } catch (IOException excp) {
+            throw error("Unable to lock %s; is another gitlet command running?", lock.getPath());
+        }
+        try {
+            try (FileChannel out = FileChannel.open(lock.toPath(), StandardOpenOption.WRITE)) {
+                writeAll(out, header.flip());
+                for (Object piece : pieces) {
+                    if (piece instanceof byte[]) {
+                        writeAll(out, ByteBuffer.wrap((byte[]) piece));
+                    } else {
+                        int[] range = (int[]) piece;
+                        writeAll(out, mapped.duplicate().limit(range[1]).position(range[0]));
+                    }
+                }
+            }
+            Files.move(lock.toPath(), f.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            lock.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void writeAll(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    public void add(Commit c) {
+        String id = c.getCommitID();
+        String msg = c.getCommitMsg();
+        if (findMessage(msg).contains(id)) {
+            return;
+        }
+        byMessage.add(msg, id);
+        for (String token : tokenize(msg)) {
+            byToken.add(token, id);
+        }
+    }
+
+    /** IDs of the commits whose message is exactly MSG. */
+    public Set<String> findMessage(String msg) {
+        return byMessage.find(msg, false);
+    }
+
+    /** IDs of the commits whose message starts with PREFIX. */
+    public Set<String> findMessagePrefix(String prefix) {
+        return byMessage.find(prefix, true);
+    }
+
+    /** IDs of the commits whose message contains the word TOKEN, in any case. */
+    public Set<String> findToken(String token) {
+        return byToken.find(token.toLowerCase(), false);
+    }
+
+    private static Set<String> tokenize(String msg) {
+        Set<String> res = new HashSet<>();
+        for (String token : msg.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                res.add(token);
+            }
+        }
+        return res;
+    }
+
+    // one of the two sorted tables of the file, and the IDs added to its keys since
+    private class Table {
+        private int count;
+        private int offsetsPos;
+        private final TreeMap<byte[], TreeSet<String>> added =
+                new TreeMap<>(Arrays::compareUnsigned);
+
+        private void add(String key, String id) {
+            added.computeIfAbsent(key.getBytes(StandardCharsets.UTF_8), k -> new TreeSet<>())
+                    .add(id);
+        }
+
+        // IDs of the keys equal to KEY, or starting with it if PREFIX
+        private Set<String> find(String key, boolean prefix) {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            Set<String> res = new TreeSet<>();
+            for (int i = firstNotBefore(k); i < count && entryMatches(k, i, prefix); i++) {
+                readIDs(entryStart(i), res);
+            }
+            for (Map.Entry<byte[], TreeSet<String>> e : added.tailMap(k, true).entrySet()) {
+                if (!matches(e.getKey(), k, prefix)) {
+                    break;
+                }
+                res.addAll(e.getValue());
+            }
+            return res;
+        }
+
+        // the index of the first entry whose key is not before KEY, by bisection
+        private int firstNotBefore(byte[] key) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareToEntry(key, mid) > 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private boolean entryMatches(byte[] key, int i, boolean prefix) {
+            int pos = entryStart(i);
+            int length = mapped.getInt(pos);
+            if (prefix ? length < key.length : length != key.length) {
+                return false;
+            }
+            return mapped.slice(pos + 4, key.length).equals(ByteBuffer.wrap(key));
+        }
+
+        // merges the entries read with the ones added since, both in key order, into
+        // PIECES; returns where each entry starts, counting from LENGTH, which it advances
+        private int[] merge(List<Object> pieces, int[] length) {
+            List<Map.Entry<byte[], TreeSet<String>>> news = new ArrayList<>(added.entrySet());
+            int[] offsets = new int[count + news.size()];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < count || j < news.size()) {
+                int cmp = i == count ? 1 : j == news.size() ? -1
+                        : -compareToEntry(news.get(j).getKey(), i);
+                offsets[n++] = length[0];
+                if (cmp < 0) {
+                    int from = entryStart(i++);
+                    int to = from + entryLength(from);
+                    Object last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                    if (last instanceof int[] && ((int[]) last)[1] == from) {
+                        ((int[]) last)[1] = to;
+                    } else {
+                        pieces.add(new int[]{from, to});
+                    }
+                    length[0] += to - from;
+                    continue;
+                }
+                Set<String> ids = news.get(j).getValue();
+                if (cmp == 0) {
+                    ids = new TreeSet<>(ids);
+                    readIDs(entryStart(i++), ids);
+                }
+                byte[] entry = encodeEntry(news.get(j++).getKey(), ids);
+                pieces.add(entry);
+                length[0] += entry.length;
+            }
+            return Arrays.copyOf(offsets, n);
+        }
+
+        private int entryStart(int i) {
+            return mapped.getInt(offsetsPos + 4 * i);
+        }
+
+        // compares KEY with the key of the i-th entry read, without decoding it
+        private int compareToEntry(byte[] key, int i) {
+            int pos = entryStart(i);
+            int length = mapped.getInt(pos);
+            pos += 4;
+            for (int k = 0; k < Math.min(length, key.length); k++) {
+                int cmp = Integer.compare(key[k] & 0xff, mapped.get(pos + k) & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(key.length, length);
+        }
+    }
+
+    private int entryLength(int pos) {
+        int keyLength = mapped.getInt(pos);
+        return 8 + keyLength + Codec.ID_BYTES * mapped.getInt(pos + 4 + keyLength);
+    }
+
+    private void readIDs(int pos, Set<String> res) {
+        ByteBuffer in = mapped.duplicate().position(pos);
+        Codec.skipString(in);
+        int n = in.getInt();
+        for (int k = 0; k < n; k++) {
+            res.add(Codec.getID(in));
+        }
+    }
+
+    private static byte[] encodeEntry(byte[] key, Set<String> ids) {
+        Codec.Encoder out = new Codec.Encoder().putInt(key.length).putBytes(key)
+                .putInt(ids.size());
+        for (String id : ids) {
+            out.putID(id);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean matches(byte[] key, byte[] query, boolean prefix) {
+        if (prefix ? key.length < query.length : key.length != query.length) {
+            return false;
+        }
+        return Arrays.equals(key, 0, query.length, query, 0, query.length);
+    }
+
+}
@@ -2,12 +2,19 @@ package gitlet;
 import static gitlet.Utils.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
-import java.io.ObjectInputStream;
 import java.nio.file.*;
 
 /** Utilities but built by my own - to separate from the given utilities
@@ -16,29 +23,219 @@ import java.nio.file.*;
  */
 
 class MyUtils {
+    /** Every stored object starts with a header of its type and the length of what follows,
+     *  so the kind of an object is known without reading or deserializing all of it. */
+    public static final byte COMMIT_TYPE = 'c';
+    public static final byte BLOB_TYPE = 'b';
+    public static final byte TREE_TYPE = 't';
+    // only found in packs, where a blob may be stored as a delta against another one
+    public static final byte DELTA_TYPE = 'd';
+    public static final int OBJECT_HEADER_SIZE = 9;
+
+    /** A new SHA-1 digest, the hash object IDs and checksums are taken with. */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    // the loose object file of the full ID, whether it exists or not
     public static File getObjectFilebyID(String id, File objectDir) {
+        return join(objectDir, id.substring(0, 3), id.substring(3));
+    }
+
+    // the loose object file of the full ID, with its fanout folder created for writing
+    public static File newObjectFile(String id, File objectDir) {
         File objectFolder = join(objectDir, id.substring(0, 3));
         objectFolder.mkdir();
-        if (id.length() < 16) {
-            for (File f: objectFolder.listFiles()) {
-                if (f.getName().startsWith(id.substring(3))) {
-                    return f;
+        return new File(objectFolder, id.substring(3));
+    }
+
+    /** Returns the sorted IDs of all objects starting with PREFIX. Packed objects are
+     *  found by binary search over the pack index; loose ones by listing the single
+     *  fanout folder of the prefix, which gc keeps small. Nothing is created. */
+    public static List<String> findObjectIDs(String prefix, File objectDir) {
+        TreeSet<String> res = new TreeSet<>();
+        if (prefix.length() == UID_LENGTH) {
+            if (getObjectFilebyID(prefix, objectDir).isFile()) {
+                res.add(prefix);
+            }
+        } else {
+            String[] folders = prefix.length() >= 3
+                    ? new String[]{prefix.substring(0, 3)} : objectDir.list();
+            for (String folder : folders == null ? new String[0] : folders) {
+                if (folder.length() != 3 || !folder.startsWith(prefix.substring(0,
+                        Math.min(3, prefix.length())))) {
+                    continue;
+                }
+                List<String> names = plainFilenamesIn(join(objectDir, folder));
+                for (String name : names == null ? new ArrayList<String>() : names) {
+                    if ((folder + name).startsWith(prefix)) {
+                        res.add(folder + name);
+                    }
                 }
             }
         }
-        return new File(objectFolder, id.substring(3));
+        PackFile pack = PackFile.open(objectDir);
+        if (pack != null) {
+            res.addAll(pack.findByPrefix(prefix));
+        }
+        return new ArrayList<>(res);
+    }
+
+    // the full ID of the only object starting with PREFIX
+    public static String resolveObjectID(String prefix, File objectDir) {
+        return resolveObjectID(prefix, objectDir, (byte) 0);
+    }
+
+    // the full ID of the only object of the given TYPE starting with PREFIX; 0 is any type
+    public static String resolveObjectID(String prefix, File objectDir, byte type) {
+        List<String> matches = prefix.isEmpty() ? new ArrayList<>()
+                : findObjectIDs(prefix, objectDir);
+        if (type != 0) {
+            matches.removeIf(id -> objectType(id, objectDir) != type);
+        }
+        if (matches.isEmpty()) {
+            // here actually should be both for blobs and commits,
+            // but this is to fulfill test case purpose in project doc
+            throw error("No commit with that id exists.");
+        } else if (matches.size() > 1) {
+            throw error("Ambiguous commit id %s: it matches %d objects.",
+                    prefix, matches.size());
+        }
+        return matches.get(0);
     }
 
-    public static <T extends Serializable> T getObjectbyID(String id,
-                                                           Class<T> expectedClass, File objectDir) {
+    public static Commit getCommitbyID(String id, File objectDir) {
+        if (id.length() < UID_LENGTH) {
+            // abbreviated IDs only need to be unique among commits
+            id = resolveObjectID(id, objectDir, COMMIT_TYPE);
+        }
+        return Commit.decode(readObjectBytes(id, objectDir));
+    }
+
+    public static byte[] objectHeader(byte type, long length) {
+        return ByteBuffer.allocate(OBJECT_HEADER_SIZE).put(type).putLong(length).array();
+    }
+
+    // the contents of an object, without its header
+    public static byte[] readObjectBytes(String id, File objectDir) {
+        byte[] stored = readStoredObject(id, objectDir);
+        return Arrays.copyOfRange(stored, OBJECT_HEADER_SIZE, stored.length);
+    }
+
+    // the type of an object, read from its header only
+    public static byte objectType(String id, File objectDir) {
         File f = getObjectFilebyID(id, objectDir);
-        if (!f.exists()) {
-            System.out.println("No commit with that id exists.");
+        if (f.exists()) {
+            try (InputStream in = new FileInputStream(f)) {
+                return (byte) in.read();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        PackFile pack = PackFile.open(objectDir);
+        if (pack == null || !pack.contains(id)) {
+            throw error("No object with id %s", id);
+        }
+        return pack.typeOf(id);
+    }
+
+    // how many objects are copied at once, and how many more may wait for a thread
+    private static final int COPY_THREADS = 8;
+    private static final int COPY_QUEUE = 64;
+
+    /** Copies the object ID from FROMDIR to TODIR as stored. It is written to a
+     *  temporary file first and renamed into place, so that a copy cut short never
+     *  leaves a truncated object behind. */
+    public static void copyObject(String id, File fromDir, File toDir) {
+        File loose = getObjectFilebyID(id, fromDir);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(toDir.toPath(), "tmp_obj_", null);
+            if (loose.exists()) {
+                try (FileChannel in = FileChannel.open(loose.toPath(), StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    long done = 0;
+                    long size = in.size();
+                    while (done < size) {
+                        done += in.transferTo(done, size - done, out);
+                    }
+                }
+            } else {
+                Files.write(tmp, readStoredObject(id, fromDir));
+            }
+            Files.move(tmp, newObjectFile(id, toDir).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copies every object of IDS from FROMDIR to TODIR, on COPY_THREADS threads.
+     *  Once COPY_QUEUE copies are waiting, the caller runs the next one itself,
+     *  so it never gets far ahead of the disks. */
+    public static void copyObjects(Collection<String> ids, File fromDir, File toDir) {
+        if (ids.size() < 2) {
+            for (String id : ids) {
+                copyObject(id, fromDir, toDir);
+            }
+            return;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(COPY_THREADS, COPY_THREADS,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(COPY_QUEUE),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<?>> copies = new ArrayList<>();
+        try {
+            for (String id : ids) {
+                copies.add(pool.submit(() -> copyObject(id, fromDir, toDir)));
+            }
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // the stored bytes of an object, looked up in the loose folders first and then the pack
+    public static byte[] readStoredObject(String id, File objectDir) {
+        String fullID = id.length() == UID_LENGTH ? id : resolveObjectID(id, objectDir);
+        File f = getObjectFilebyID(fullID, objectDir);
+        if (f.exists()) {
+            return readContents(f);
+        }
+        PackFile pack = PackFile.open(objectDir);
+        byte[] res = pack == null ? null : pack.read(fullID);
+        if (res == null) {
             // here actually should be both for blobs and commits,
             // but this is to fulfill test case purpose in project doc
-            System.exit(0);
+            throw error("No commit with that id exists.");
+        }
+        return res;
+    }
+
+    // IDs of every object in the store, loose or packed
+    public static Set<String> allObjectIDs(File objectDir) {
+        Set<String> res = new TreeSet<>(PackFile.looseObjects(objectDir).keySet());
+        PackFile pack = PackFile.open(objectDir);
+        if (pack != null) {
+            res.addAll(pack.allIDs());
         }
-        return readObject(f, expectedClass); // make sure the file exists
+        return res;
     }
 
     public static List<String> asSortedList(Set<String> s) {
@@ -64,20 +261,6 @@ class MyUtils {
         return !(str == null || str.isEmpty());
     }
 
-    public static String commitOrBlob(File file) {
-        try {
-            ObjectInputStream in =
-                    new ObjectInputStream(new FileInputStream(file));
-            Commit result = (Commit) in.readObject();
-        } catch (IOException | ClassNotFoundException excp) {
-            throw new IllegalArgumentException(excp.getMessage());
-        } catch (ClassCastException excp) {
-            return "Blob";
-        }
-
-        return "Commit";
-    }
-
     public static String connectStringPaths(String[] paths) {
         StringBuilder res = new StringBuilder(paths[0]);
         for (int i = 1; i < paths.length; i++) {
@@ -87,19 +270,14 @@ class MyUtils {
     }
 
     public static boolean objectExistence(String objectId, File objectFolder) {
-        File l2Folder = join(objectFolder, objectId.substring(0, 3));
-        if (!l2Folder.exists()) {
-            return false;
-        }
-
-        for (File f: l2Folder.listFiles()) {
-            // if listFiles -> null, it skips the for loop
-            if (f.getName().startsWith(objectId.substring(3))) {
+        if (objectId.length() == UID_LENGTH) {
+            if (getObjectFilebyID(objectId, objectFolder).isFile()) {
                 return true;
             }
+            PackFile pack = PackFile.open(objectFolder);
+            return pack != null && pack.contains(objectId);
         }
-
-        return false;
+        return !objectId.isEmpty() && !findObjectIDs(objectId, objectFolder).isEmpty();
     }
 
 }
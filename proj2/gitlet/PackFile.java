@@ -0,0 +1,643 @@
+package gitlet;
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+
+/** Represents the packed part of a gitlet object store.
+ *
+ * Loose objects live one-file-per-object under objects/<3 hex>/<rest>;
+ * gc moves them into a single append-only data file in objects/pack
+ * together with a sorted index objects/pack/objects.idx, so that lookups are
+ * a binary search over a memory-mapped index instead of a directory listing.
+ *
+ *  idx layout: "GIDX" | version | count | fanout[256] | count * entry | data file name
+ *  entry:      20-byte raw id | 8-byte offset into the pack | 4-byte length
+ *
+ * The index names the data file its offsets point into, objects.pack for an index
+ * of version 1, so a rewritten pack goes to a new data file and becomes the pack
+ * only when the index naming it is renamed into place.
+ *
+ * A blob may be packed as a delta against another blob, usually an older version
+ * of the same file, chosen by gc. Its entry then holds a delta object: the header
+ * with DELTA_TYPE, the 20-byte ID of the base, and the Delta rebuilding the blob.
+ * Chains of deltas are at most MAX_DEPTH long, and rebuilt bases are kept in a
+ * cache bounded in bytes, so reading the versions of a file one after the other
+ * rebuilds each of them once.
+ *
+ *  @author Grebeth.P
+ */
+public class PackFile {
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 2;
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'C', 'K'};
+    private static final byte[] IDX_MAGIC = {'G', 'I', 'D', 'X'};
+    private static final int FANOUT_SIZE = 256;
+    private static final int HEADER_SIZE = 12 + 4 * FANOUT_SIZE;
+    private static final int ID_BYTES = 20;
+    private static final int ENTRY_SIZE = ID_BYTES + 8 + 4;
+    private static final int MAX_DEPTH = 10;
+    // blobs larger than this are never deltified, as both versions have to be in memory
+    private static final int MAX_DELTA_SOURCE = 16 * 1024 * 1024;
+    private static final long BASE_CACHE_BYTES = 32L * 1024 * 1024;
+
+    // opened packs are kept for the rest of the invocation, one per objects folder,
+    // along with the modification time and length their index had when opened
+    private static final HashMap<File, PackFile> OPENED = new HashMap<>();
+    private static final HashMap<File, String> STAMPS = new HashMap<>();
+
+    private final File packFile;
+    private final MappedByteBuffer idx;
+    private final int count;
+    private FileChannel packChannel;
+    // a map from ID to the contents of the blobs rebuilt from deltas, least recently used first
+    private final LinkedHashMap<String, byte[]> bases = new LinkedHashMap<>(16, 0.75f, true);
+    private long basesSize;
+
+    private PackFile(File packFile, MappedByteBuffer idx) {
+        this.packFile = packFile;
+        this.idx = idx;
+        this.count = idx.getInt(8);
+    }
+
+    public static File packDir(File objectDir) {
+        return join(objectDir, "pack");
+    }
+
+    private static File packDataFile(File objectDir) {
+        return join(packDir(objectDir), "objects.pack");
+    }
+
+    private static File packIdxFile(File objectDir) {
+        return join(packDir(objectDir), "objects.idx");
+    }
+
+    /** Returns the pack of OBJECTDIR, or null if nothing has been packed yet.
+     *  Safe to call from the threads that store blobs in parallel. */
+    public static synchronized PackFile open(File objectDir) {
+        File key = objectDir.getAbsoluteFile();
+        if (OPENED.containsKey(key)) {
+            return OPENED.get(key);
+        }
+        PackFile pack = null;
+        File idxFile = packIdxFile(objectDir);
+        STAMPS.put(key, stampOf(idxFile));
+        if (idxFile.isFile()) {
+            try (FileChannel ch = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                for (int i = 0; i < IDX_MAGIC.length; i++) {
+                    if (buf.get(i) != IDX_MAGIC[i]) {
+                        throw error("Corrupted pack index %s", idxFile.getPath());
+                    }
+                }
+                pack = new PackFile(dataFileOf(objectDir, buf), buf);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        OPENED.put(key, pack);
+        return pack;
+    }
+
+    // the data file the offsets of the mapped index IDX point into
+    private static File dataFileOf(File objectDir, ByteBuffer idx) {
+        if (idx.getInt(IDX_MAGIC.length) < 2) {
+            return packDataFile(objectDir);
+        }
+        ByteBuffer in = idx.duplicate().position(HEADER_SIZE + idx.getInt(8) * ENTRY_SIZE);
+        return join(packDir(objectDir), Codec.getString(in));
+    }
+
+    private static void forget(File objectDir) {
+        PackFile old = OPENED.remove(objectDir.getAbsoluteFile());
+        STAMPS.remove(objectDir.getAbsoluteFile());
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    private static String stampOf(File idxFile) {
+        return idxFile.lastModified() + ":" + idxFile.length();
+    }
+
+    /** Forgets the packs whose index was rewritten since they were opened, e.g. by
+     *  a gc run from another process while a daemon kept them open. */
+    public static synchronized void forgetStale() {
+        for (File key : new ArrayList<>(OPENED.keySet())) {
+            if (!STAMPS.get(key).equals(stampOf(packIdxFile(key)))) {
+                forget(key);
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            if (packChannel != null) {
+                packChannel.close();
+                packChannel = null;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean contains(String id) {
+        return id.length() == UID_LENGTH && search(id) >= 0;
+    }
+
+    /** Returns all the packed IDs starting with PREFIX, in sorted order. */
+    public List<String> findByPrefix(String prefix) {
+        List<String> res = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < count; i++) {
+            String id = idAt(i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            res.add(id);
+        }
+        return res;
+    }
+
+    /** Returns all the packed IDs in sorted order. */
+    public List<String> allIDs() {
+        List<String> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            res.add(idAt(i));
+        }
+        return res;
+    }
+
+    /** Returns the stored bytes of the object with the full ID, or null if absent. */
+    public byte[] read(String id) {
+        ByteBuffer region = region(id);
+        if (region == null) {
+            return null;
+        }
+        byte[] res = new byte[region.remaining()];
+        region.get(res);
+        return res;
+    }
+
+    /** Returns the region holding the stored bytes of the object with the full ID,
+     *  or null if absent. Nothing is copied onto the heap, except for blobs packed
+     *  as deltas, which are rebuilt. */
+    public ByteBuffer region(String id) {
+        ByteBuffer raw = rawRegion(id);
+        if (raw == null || raw.get(0) != DELTA_TYPE) {
+            return raw;
+        }
+        byte[] content = content(id);
+        return ByteBuffer.allocate(OBJECT_HEADER_SIZE + content.length)
+                .put(objectHeader(BLOB_TYPE, content.length)).put(content).flip();
+    }
+
+    /** Writes the contents of the packed blob with the full ID to OUT, straight from
+     *  the pack file unless it is packed as a delta; returns false if it is absent. */
+    public boolean transferContent(String id, WritableByteChannel out) throws IOException {
+        int i = id.length() == UID_LENGTH ? search(id) : -1;
+        if (i < 0) {
+            return false;
+        }
+        if (map(offsetAt(i), 1).get(0) == DELTA_TYPE) {
+            ByteBuffer content = ByteBuffer.wrap(content(id));
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+            return true;
+        }
+        long start = offsetAt(i) + OBJECT_HEADER_SIZE;
+        long size = lengthAt(i) - OBJECT_HEADER_SIZE;
+        long done = 0;
+        while (done < size) {
+            done += channel().transferTo(start + done, size - done, out);
+        }
+        return true;
+    }
+
+    private ByteBuffer rawRegion(String id) {
+        int i = id.length() == UID_LENGTH ? search(id) : -1;
+        return i < 0 ? null : map(offsetAt(i), lengthAt(i));
+    }
+
+    /** Returns the type of the packed object with the full ID, from its header only. */
+    public byte typeOf(String id) {
+        byte type = rawRegion(id).get(0);
+        return type == DELTA_TYPE ? BLOB_TYPE : type;
+    }
+
+    // the contents of the packed blob with the given ID, rebuilding it if it is a delta
+    private synchronized byte[] content(String id) {
+        byte[] cached = bases.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        ByteBuffer raw = rawRegion(id);
+        raw.position(OBJECT_HEADER_SIZE);
+        byte[] res;
+        if (raw.get(0) == DELTA_TYPE) {
+            byte[] baseID = new byte[ID_BYTES];
+            raw.get(baseID);
+            byte[] delta = new byte[raw.remaining()];
+            raw.get(delta);
+            res = Delta.apply(content(Codec.toHex(baseID)), delta);
+        } else {
+            res = new byte[raw.remaining()];
+            raw.get(res);
+        }
+        cacheBase(id, res);
+        return res;
+    }
+
+    private void cacheBase(String id, byte[] content) {
+        if (content.length > BASE_CACHE_BYTES / 4) {
+            return;
+        }
+        bases.put(id, content);
+        basesSize += content.length;
+        Iterator<Map.Entry<String, byte[]>> it = bases.entrySet().iterator();
+        while (basesSize > BASE_CACHE_BYTES && it.hasNext()) {
+            basesSize -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /** Returns the ID of the blob the packed object ID is stored as a delta against,
+     *  or null if it is not packed as a delta. */
+    public String baseOf(String id) {
+        ByteBuffer raw = rawRegion(id);
+        if (raw == null || raw.get(0) != DELTA_TYPE) {
+            return null;
+        }
+        byte[] baseID = new byte[ID_BYTES];
+        raw.position(OBJECT_HEADER_SIZE);
+        raw.get(baseID);
+        return Codec.toHex(baseID);
+    }
+
+    // the number of deltas to apply to rebuild the packed object with the given ID
+    private int depthOf(String id) {
+        int depth = 0;
+        for (String base = baseOf(id); base != null; base = baseOf(base)) {
+            depth++;
+        }
+        return depth;
+    }
+
+    private ByteBuffer map(long offset, int length) {
+        try {
+            return channel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // opened on first use, possibly by one of the threads checking out files in parallel
+    private synchronized FileChannel channel() throws IOException {
+        if (packChannel == null) {
+            packChannel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+        }
+        return packChannel;
+    }
+
+    private int entryPos(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    private String idAt(int i) {
+        byte[] raw = new byte[ID_BYTES];
+        idx.get(entryPos(i), raw);
+        return Codec.toHex(raw);
+    }
+
+    private long offsetAt(int i) {
+        return idx.getLong(entryPos(i) + ID_BYTES);
+    }
+
+    private int lengthAt(int i) {
+        return idx.getInt(entryPos(i) + ID_BYTES + 8);
+    }
+
+    // compares the id at entry i against the (possibly partial) hex KEY
+    private int compareAt(int i, String key) {
+        int pos = entryPos(i);
+        for (int k = 0; k < ID_BYTES && 2 * k < key.length(); k++) {
+            int b = idx.get(pos + k) & 0xff;
+            int hi = Character.digit(key.charAt(2 * k), 16);
+            if ((b >> 4) != hi) {
+                return (b >> 4) - hi;
+            }
+            if (2 * k + 1 < key.length()) {
+                int lo = Character.digit(key.charAt(2 * k + 1), 16);
+                if ((b & 0xf) != lo) {
+                    return (b & 0xf) - lo;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // first entry whose id is >= KEY, narrowed down by the fanout table first
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = count;
+        int first = key.length() >= 2 ? hexByte(key) : -1;
+        if (first >= 0) {
+            lo = first == 0 ? 0 : idx.getInt(12 + 4 * (first - 1));
+            hi = idx.getInt(12 + 4 * first);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int hexByte(String key) {
+        int hi = Character.digit(key.charAt(0), 16);
+        int lo = Character.digit(key.charAt(1), 16);
+        return hi < 0 || lo < 0 ? -1 : (hi << 4) | lo;
+    }
+
+    private int search(String id) {
+        int i = lowerBound(id);
+        return i < count && compareAt(i, id) == 0 ? i : -1;
+    }
+
+    /** Moves every loose object of OBJECTDIR into its pack and returns how many were moved.
+     *  New objects are appended to the pack data file; the index is rewritten
+     *  to a temporary file and renamed over the old one. DELTABASES maps the ID of
+     *  a loose blob to the blob it may be stored as a delta against; it is, if
+     *  the delta is less than half the blob and its chain stays short enough. */
+    public static int repack(File objectDir, Map<String, String> deltaBases) {
+        TreeMap<String, long[]> entries = new TreeMap<>();
+        PackFile old = open(objectDir);
+        if (old != null) {
+            for (int i = 0; i < old.count; i++) {
+                entries.put(old.idAt(i), new long[]{old.offsetAt(i), old.lengthAt(i)});
+            }
+        }
+
+        List<File> moved = new ArrayList<>();
+        packDir(objectDir).mkdir();
+        // appending leaves the offsets of the current index valid
+        File data = old != null ? old.packFile : packDataFile(objectDir);
+        try (FileChannel out = FileChannel.open(data.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (out.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(8).put(PACK_MAGIC).putInt(VERSION);
+                header.flip();
+                out.write(header);
+            }
+            DeltaPlanner planner = new DeltaPlanner(objectDir, old, deltaBases);
+            for (Map.Entry<String, File> loose : looseObjects(objectDir).entrySet()) {
+                String id = loose.getKey();
+                File f = loose.getValue();
+                if (!entries.containsKey(id) && f.length() <= Integer.MAX_VALUE) {
+                    long offset = out.size();
+                    byte[] delta = planner.deltaFor(id);
+                    if (delta != null) {
+                        writeFully(out, ByteBuffer.wrap(delta));
+                        entries.put(id, new long[]{offset, delta.length});
+                        moved.add(f);
+                        continue;
+                    }
+                    try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                        long done = 0;
+                        while (done < in.size()) {
+                            done += in.transferTo(done, in.size() - done, out);
+                        }
+                    }
+                    entries.put(id, new long[]{offset, f.length()});
+                } else if (!entries.containsKey(id)) {
+                    continue; // too large for a single mapping, stays loose
+                }
+                moved.add(f);
+            }
+            out.force(true);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        writeIndex(objectDir, entries, data);
+        forget(objectDir);
+        for (File f : moved) {
+            File folder = f.getParentFile();
+            f.delete();
+            folder.delete(); // only succeeds once the fanout folder is empty
+        }
+        return moved.size();
+    }
+
+    /** Rewrites the pack of OBJECTDIR with only the objects KEEP accepts, copied as
+     *  they are stored, and returns how many bytes that saves. The base of a kept
+     *  delta has to be kept as well. The kept objects go to a new data file, which
+     *  replaces the old one when the index naming it is renamed into place; a crash
+     *  before then leaves the old pack as it was, and the data file left over is
+     *  deleted by the next compaction. */
+    public static long compact(File objectDir, Predicate<String> keep) {
+        PackFile old = open(objectDir);
+        if (old == null) {
+            return 0;
+        }
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < old.count; i++) {
+            if (keep.test(old.idAt(i))) {
+                kept.add(i);
+            }
+        }
+        if (kept.size() == old.count) {
+            return 0;
+        }
+
+        File data = old.packFile;
+        File idxFile = packIdxFile(objectDir);
+        long before = data.length() + idxFile.length();
+        File newData;
+        try {
+            newData = Files.createTempFile(packDir(objectDir).toPath(), "objects-", ".pack")
+                    .toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        TreeMap<String, long[]> entries = new TreeMap<>();
+        try (FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(newData.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8).put(PACK_MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(out, header);
+            for (int i : kept) {
+                long offset = out.size();
+                long done = 0;
+                while (done < old.lengthAt(i)) {
+                    done += in.transferTo(old.offsetAt(i) + done, old.lengthAt(i) - done, out);
+                }
+                entries.put(old.idAt(i), new long[]{offset, old.lengthAt(i)});
+            }
+            out.force(true);
+        } catch (IOException excp) {
+            newData.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        forget(objectDir);
+        writeIndex(objectDir, entries, newData);
+        // the old data file, and any a compaction that crashed left behind
+        File[] packs = packDir(objectDir).listFiles((dir, name) -> name.endsWith(".pack")
+                && !name.equals(newData.getName()));
+        for (File f : packs == null ? new File[0] : packs) {
+            f.delete();
+        }
+        return before - newData.length() - idxFile.length();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /** Decides which loose blobs are packed as deltas, and encodes them. */
+    private static class DeltaPlanner {
+        private final File objectDir;
+        private final PackFile old;
+        private final Map<String, String> deltaBases;
+        // a map from ID to the length of its delta chain once packed
+        private final HashMap<String, Integer> depths = new HashMap<>();
+        // a map from ID to its delta object, for the blobs packed as deltas
+        private final HashMap<String, byte[]> deltas = new HashMap<>();
+
+        DeltaPlanner(File objectDir, PackFile old, Map<String, String> deltaBases) {
+            this.objectDir = objectDir;
+            this.old = old;
+            this.deltaBases = deltaBases;
+        }
+
+        // the delta object to pack in place of the loose blob ID, or null to pack it whole
+        byte[] deltaFor(String id) {
+            depth(id);
+            return deltas.remove(id);
+        }
+
+        private int depth(String id) {
+            if (depths.containsKey(id)) {
+                return depths.get(id);
+            }
+            if (old != null && old.contains(id)) {
+                depths.put(id, old.depthOf(id));
+                return depths.get(id);
+            }
+            // while its own base is looked at, ID cannot be a base itself; this breaks
+            // cycles, as when a file goes back to an older version
+            depths.put(id, MAX_DEPTH);
+            String base = deltaBases.get(id);
+            if (base == null || !objectExistence(base, objectDir)
+                    || objectType(base, objectDir) != BLOB_TYPE
+                    || objectType(id, objectDir) != BLOB_TYPE
+                    || getObjectFilebyID(id, objectDir).length() > MAX_DELTA_SOURCE) {
+                return packWhole(id);
+            }
+            int baseDepth = depth(base);
+            if (baseDepth >= MAX_DEPTH) {
+                return packWhole(id);
+            }
+            byte[] baseContent = readObjectBytes(base, objectDir);
+            if (baseContent.length > MAX_DELTA_SOURCE) {
+                return packWhole(id);
+            }
+            byte[] content = readObjectBytes(id, objectDir);
+            byte[] delta = Delta.encode(baseContent, content);
+            if (delta.length + ID_BYTES >= content.length / 2) {
+                return packWhole(id);
+            }
+            deltas.put(id, new Codec.Encoder()
+                    .putBytes(objectHeader(DELTA_TYPE, ID_BYTES + delta.length))
+                    .putID(base).putBytes(delta).toByteArray());
+            depths.put(id, baseDepth + 1);
+            return baseDepth + 1;
+        }
+
+        private int packWhole(String id) {
+            depths.put(id, 0);
+            return 0;
+        }
+    }
+
+    // writes the index of ENTRIES, whose offsets point into DATA, and renames it into place
+    private static void writeIndex(File objectDir, TreeMap<String, long[]> entries, File data) {
+        byte[] name = new Codec.Encoder().putString(data.getName()).toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE
+                + name.length);
+        buf.put(IDX_MAGIC).putInt(IDX_VERSION).putInt(entries.size());
+        int[] fanout = new int[FANOUT_SIZE];
+        for (String id : entries.keySet()) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        int total = 0;
+        for (int n : fanout) {
+            total += n;
+            buf.putInt(total);
+        }
+        for (Map.Entry<String, long[]> e : entries.entrySet()) {
+            buf.put(Codec.fromHex(e.getKey()));
+            buf.putLong(e.getValue()[0]);
+            buf.putInt((int) e.getValue()[1]);
+        }
+        buf.put(name);
+
+        File idxFile = packIdxFile(objectDir);
+        File tmp = join(packDir(objectDir), "objects.idx.tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(out, buf.flip());
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), idxFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns a map from ID to file of every loose object in OBJECTDIR. */
+    public static TreeMap<String, File> looseObjects(File objectDir) {
+        TreeMap<String, File> res = new TreeMap<>();
+        File[] folders = objectDir.listFiles();
+        if (folders == null) {
+            return res;
+        }
+        for (File folder : folders) {
+            // fanout folders are named by the first 3 hex digits; skips pack/
+            if (folder.getName().length() != 3) {
+                continue;
+            }
+            List<String> names = plainFilenamesIn(folder);
+            if (names != null) {
+                for (String name : names) {
+                    res.put(folder.getName() + name, join(folder, name));
+                }
+            }
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,171 @@
+package gitlet;
+import static gitlet.Utils.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/** The branch heads of a gitlet repository.
+ *
+ * A branch is either loose, a file under refs/heads named after it and holding
+ * the ID of its head, or packed, a line of .gitlet/packed-refs. A loose branch
+ * hides a packed one of the same name, so moving a branch only ever writes its
+ * loose file. gc packs every loose branch, so that a repository with thousands
+ * of branches keeps one file for them rather than thousands.
+ *
+ *  packed-refs: one "<head ID> <branch>\n" line per branch, sorted by branch name
+ *
+ * The file is mapped and searched by bisection for a single branch. It is only
+ * ever replaced whole: written to packed-refs.lock, which also keeps a second
+ * writer out, and renamed over the old one.
+ *
+ *  @author Grebeth.P
+ */
+class Refs {
+    private static final int ID_LENGTH = 40;
+
+    private static File headsDir(File gitletDir) {
+        return join(gitletDir, "refs", "heads");
+    }
+
+    private static File packedFile(File gitletDir) {
+        return join(gitletDir, "packed-refs");
+    }
+
+    /** Returns the head of BRANCH, or null if there is no such branch. */
+    static String read(File gitletDir, String branch) {
+        File loose = join(headsDir(gitletDir), branch);
+        if (loose.isFile()) {
+            return readContentsAsString(loose);
+        }
+        return findPacked(gitletDir, branch);
+    }
+
+    static boolean exists(File gitletDir, String branch) {
+        return read(gitletDir, branch) != null;
+    }
+
+    /** Moves BRANCH, which is created if need be, to the commit ID. */
+    static void write(File gitletDir, String branch, String id) {
+        writeContents(join(headsDir(gitletDir), branch), id);
+    }
+
+    /** Deletes BRANCH, loose or packed. */
+    static void delete(File gitletDir, String branch) {
+        join(headsDir(gitletDir), branch).delete();
+        if (findPacked(gitletDir, branch) != null) {
+            TreeMap<String, String> packed = readPacked(gitletDir);
+            packed.remove(branch);
+            writePacked(gitletDir, packed);
+        }
+    }
+
+    /** Returns the name of every branch, sorted. */
+    static List<String> names(File gitletDir) {
+        TreeSet<String> res = new TreeSet<>(readPacked(gitletDir).keySet());
+        List<String> loose = plainFilenamesIn(headsDir(gitletDir));
+        if (loose != null) {
+            res.addAll(loose);
+        }
+        return new ArrayList<>(res);
+    }
+
+    /** Moves every loose branch into packed-refs; returns how many there were. */
+    static int pack(File gitletDir) {
+        List<String> loose = plainFilenamesIn(headsDir(gitletDir));
+        if (loose == null || loose.isEmpty()) {
+            return 0;
+        }
+        TreeMap<String, String> packed = readPacked(gitletDir);
+        for (String branch : loose) {
+            packed.put(branch, readContentsAsString(join(headsDir(gitletDir), branch)));
+        }
+        writePacked(gitletDir, packed);
+        // only deleted once packed-refs holds them, so no branch is ever missing
+        for (String branch : loose) {
+            join(headsDir(gitletDir), branch).delete();
+        }
+        return loose.size();
+    }
+
+    // bisection over the lines of the mapped packed-refs
+    private static String findPacked(File gitletDir, String branch) {
+        File f = packedFile(gitletDir);
+        if (!f.isFile()) {
+            return null;
+        }
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            int lo = 0; // always the start of a line
+            int hi = buf.limit();
+            while (lo < hi) {
+                int start = (lo + hi) >>> 1;
+                while (start > lo && buf.get(start - 1) != '\n') {
+                    start--;
+                }
+                int end = start;
+                while (end < buf.limit() && buf.get(end) != '\n') {
+                    end++;
+                }
+                byte[] line = new byte[end - start];
+                buf.position(start);
+                buf.get(line);
+                String name = new String(line, ID_LENGTH + 1, line.length - ID_LENGTH - 1,
+                        StandardCharsets.UTF_8);
+                int cmp = name.compareTo(branch);
+                if (cmp == 0) {
+                    return new String(line, 0, ID_LENGTH, StandardCharsets.UTF_8);
+                } else if (cmp < 0) {
+                    lo = end + 1;
+                } else {
+                    hi = start;
+                }
+            }
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static TreeMap<String, String> readPacked(File gitletDir) {
+        TreeMap<String, String> res = new TreeMap<>();
+        File f = packedFile(gitletDir);
+        if (f.isFile()) {
+            for (String line : readContentsAsString(f).split("\n")) {
+                if (line.length() > ID_LENGTH) {
+                    res.put(line.substring(ID_LENGTH + 1), line.substring(0, ID_LENGTH));
+                }
+            }
+        }
+        return res;
+    }
+
+    private static void writePacked(File gitletDir, TreeMap<String, String> packed) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : packed.entrySet()) {
+            sb.append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+        }
+        File lock = join(gitletDir, "packed-refs.lock");
+        try {
+            Files.createFile(lock.toPath());
+        } catch (IOException excp) {
+            throw error("Unable to lock %s; is another gitlet command running?", lock.getPath());
+        }
+        try {
+            Files.write(lock.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(lock.toPath(), packedFile(gitletDir).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            lock.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+}
@@ -1,14 +1,22 @@
 package gitlet;
 
 import java.io.File;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Map;
 
 import static gitlet.Repository.*;
 import static gitlet.Utils.*;
 import static gitlet.MyUtils.*;
 
-public class Remote implements Serializable {
+/** The remotes of a repository, kept in .gitlet/remote and stored with Codec as:
+ *  version | number of remotes | remotes, each being: name | path of its .gitlet
+ *
+ *  @author Grebeth.P
+ */
+public class Remote {
+    private static final int VERSION = 1;
+
     HashMap<String, File> remoteMap;
 
     public Remote() {
@@ -25,8 +33,27 @@ public class Remote implements Serializable {
     }
 
     public void saveRemote() {
-        File outFile = Utils.join(GITLET_DIR, "remote");
-        writeObject(outFile, this);
+        saveRemote(Utils.join(GITLET_DIR, "remote"));
+    }
+
+    public void saveRemote(File outFile) {
+        Codec.Encoder out = new Codec.Encoder().putByte(VERSION).putInt(remoteMap.size());
+        for (Map.Entry<String, File> e : remoteMap.entrySet()) {
+            out.putString(e.getKey()).putString(e.getValue().getPath());
+        }
+        writeContents(outFile, out.toByteArray());
+    }
+
+    public static Remote readRemote(File inFile) {
+        ByteBuffer in = ByteBuffer.wrap(readContents(inFile));
+        Codec.checkVersion(in, VERSION, "remote");
+        Remote res = new Remote();
+        int n = in.getInt();
+        for (int i = 0; i < n; i++) {
+            String name = Codec.getString(in);
+            res.remoteMap.put(name, new File(Codec.getString(in)));
+        }
+        return res;
     }
 
     public void rmRemote(String remoteName) {
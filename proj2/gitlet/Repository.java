@@ -3,9 +3,13 @@ import static gitlet.Utils.*;
 import static gitlet.Utils.readContents;
 import static gitlet.MyUtils.*;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.function.Predicate;
 
 
 /** Represents a gitlet repository.
@@ -21,12 +25,17 @@ public class Repository {
     /** The current working directory structure.
      *  .gitlet
      *    |--objects
-     *      |--commits and blobs
+     *      |--commits and blobs (loose, one file per object)
+     *      |--pack
+     *        |--objects.idx and the data file it names (packed by gc)
      *    |--refs
      *      |--heads
-     *        |--branch names
+     *        |--branch names (loose, one file per branch)
+     *    |--packed-refs (branches packed by gc)
      *    |--HEAD
      *    |--index
+     *    |--commit-graph
+     *    |--messages
      * */
 
     public static final File CWD = new File(System.getProperty("user.dir"));
@@ -43,6 +52,10 @@ public class Repository {
     public static final File INDEX = new File(GITLET_DIR, "index");
     public static final File REMOTE = new File(GITLET_DIR, "remote");
     private static Commit currCommit;
+    // how old a temporary object file has to be before gc takes it as abandoned
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+    // HEAD, index and object cache of the command being run
+    private static RepositorySession session;
 
     public static void setupPersistence() {
         GITLET_DIR.mkdir();
@@ -53,20 +66,22 @@ public class Repository {
 
     public static void checkFolderExistence() {
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
     }
 
     public static void initiateGitlet() {
         if (GITLET_DIR.exists()) {
             String msg = "A Gitlet version-control system already exists in the current directory";
-            System.out.println(msg);
-            System.exit(0);
+            throw error(msg);
         }
         setupPersistence();
         Commit c = initCommit();
         c.saveCommit();
+        CommitGraph.load(GITLET_DIR).ensure(c.getCommitID());
+        MessageIndex messages = new MessageIndex();
+        messages.add(c);
+        messages.save(GITLET_DIR);
         initHEAD();
         initOrUpdateHeads(c);
         initIndex();
@@ -83,50 +98,119 @@ public class Repository {
     }
 
     private static void initOrUpdateHeads(Commit c) {
-        File branchHead = new File(HEADS_DIR, getCurrBranch());
-        writeContents(branchHead, c.getCommitID());
+        Refs.write(GITLET_DIR, readContentsAsString(HEAD), c.getCommitID());
     }
 
     private static void initIndex() {
-        writeObject(INDEX, new Index());
+        new Index().saveIndex(INDEX);
     }
 
     private static void initRemote() {
-        writeObject(REMOTE, new Remote());
+        new Remote().saveRemote(REMOTE);
+    }
+
+    private static RepositorySession getSession() {
+        if (session == null) {
+            session = new RepositorySession(GITLET_DIR);
+        }
+        return session;
+    }
+
+    // writes whatever the command changed in HEAD, the branch heads and the index
+    public static void closeSession() {
+        if (session != null) {
+            session.flush();
+            session = null;
+        }
+    }
+
+    // forgets what a command that stopped early changed, without writing any of it
+    public static void discardSession() {
+        session = null;
     }
 
     private static String getCurrBranch() {
-        return readContentsAsString(HEAD);
+        return getSession().getCurrBranch();
     }
 
     private static String getCurrCommitID() {
-        return readContentsAsString(join(HEADS_DIR, getCurrBranch()));
+        return getSession().getCurrCommitID();
     }
     private static Commit getCurrCommit() {
-        return getObjectbyID(getCurrCommitID(), Commit.class, OBJECT_DIR);
+        return getSession().getCurrCommit();
     }
 
-    public static void addToStage(String fileName) {
-        File f = join(CWD, fileName);
-        checkFileExist(f, "add");
+    private static Commit getCommit(String id) {
+        return getSession().getCommit(id);
+    }
+
+    /** Stages every file named by FILENAMES: plain paths, folders (all the files
+     *  below them that are not ignored) and glob patterns matched against the
+     *  paths from the repository root. Nothing is staged if any of them names no file. */
+    public static void addToStage(String... fileNames) {
+        WorkingTree workingTree = new WorkingTree(CWD);
+        LinkedHashMap<String, File> toAdd = new LinkedHashMap<>();
+        for (String fileName: fileNames) {
+            for (File f: filesToAdd(fileName, workingTree)) {
+                toAdd.put(f.getPath(), f);
+            }
+        }
 
-        Blob b = new Blob(f);
-        b.saveBlob();
+        List<File> files = new ArrayList<>(toAdd.values());
         Index stagedArea = getStagedArea(INDEX);
+        Watcher.Journal journal = getSession().getJournal();
+        if (journal != null && journal.hasBaseline()) {
+            // files the watcher saw unchanged are not even stat'ed
+            stagedArea.trustUnchanged(journal::isUnchanged);
+        }
+        HashMap<String, String> knownIDs = stagedArea.blobIDsOf(files);
+        List<Blob> blobs = new ArrayList<>();
+        for (File f: files) {
+            blobs.add(new Blob(f, knownIDs.get(f.getPath())));
+        }
+        // new contents are copied into the store in parallel; the index is
+        // only changed from this thread
+        blobs.parallelStream().forEach(Blob::saveBlob);
         HashMap<String, String> commitFileMap = getCurrCommit().getBlobs();
-        if (commitFileMap.containsKey(b.getFilePath())
-                && commitFileMap.get(b.getFilePath()).equals(b.getID())) {
-            stagedArea.removeFromStagedToAdd(b.getFilePath());
-            stagedArea.removeFromStagedToRemove(b.getFilePath());
+        for (int i = 0; i < files.size(); i++) {
+            stageFile(files.get(i), blobs.get(i), knownIDs.get(files.get(i).getPath()),
+                    commitFileMap, stagedArea);
+        }
+        getSession().indexChanged();
+    }
+
+    private static List<File> filesToAdd(String fileName, WorkingTree workingTree) {
+        if (WorkingTree.isGlob(fileName)) {
+            List<File> matches = workingTree.matching(fileName);
+            if (matches.isEmpty()) {
+                checkFileExist(join(CWD, fileName), "add");
+            }
+            return matches;
+        }
+        File f = join(CWD, fileName).toPath().normalize().toFile();
+        checkFileExist(f, "add");
+        // a folder stages every file below it that is not ignored
+        return f.isDirectory() ? workingTree.files(f) : Collections.singletonList(f);
+    }
+
+    private static void stageFile(File f, Blob b, String knownID,
+                                  HashMap<String, String> commitFileMap, Index stagedArea) {
+        if (!b.getID().equals(knownID)) {
+            // the file changed while being stored
+            stagedArea.recordStat(f, b.getID());
+        }
+        String filePath = f.getPath();
+        if (commitFileMap.containsKey(filePath)
+                && commitFileMap.get(filePath).equals(b.getID())) {
+            stagedArea.removeFromStagedToAdd(filePath);
+            stagedArea.removeFromStagedToRemove(filePath);
         } else {
-            if (stagedArea.getStagedToRemove().containsKey(b.getFilePath())) {
-                stagedArea.removeFromStagedToRemove(b.getFilePath());
+            if (stagedArea.isStagedToRemove(filePath)) {
+                stagedArea.removeFromStagedToRemove(filePath);
             } else {
-                stagedArea.stageToAdd(b);
+                stagedArea.stageToAdd(filePath, b.getID());
             }
         }
-
-        stagedArea.saveIndex();
     }
 
     // test function for debugging purpose
@@ -136,13 +220,16 @@ public class Repository {
             System.out.println(getStagedArea(INDEX).getStagedToRemove());
         } else if (toPrint.equals("currCommit")) {
             System.out.println(getCurrCommit().getBlobs());
-            String toPrint1 = readContentsAsString(join(HEADS_DIR, getCurrBranch()));
+            String toPrint1 = getCurrCommitID();
             System.out.println(toPrint1);
         }
     }
 
     private static Index getStagedArea(File idx) {
-        return readObject(idx, Index.class);
+        if (idx.equals(INDEX)) {
+            return getSession().getIndex();
+        }
+        return Index.readIndex(idx);
     }
 
     public static void newCommit(String commitMsg, String mCommitID) {
@@ -151,17 +238,19 @@ public class Repository {
         Index stagedArea = getStagedArea(INDEX);
         if (stagedArea.getStagedToAdd().isEmpty()
                 && stagedArea.getStagedToRemove().isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
         } else if (commitMsg.isEmpty()) {
             // abort if the commit msg is blank
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
 
-        Commit c = new Commit(commitMsg, calculateParents(mCommitID), calculateBlobs());
+        Commit c = new Commit(commitMsg, calculateParents(mCommitID), calculateTree());
         c.saveCommit();
-        initOrUpdateHeads(c);
+        CommitGraph.load(GITLET_DIR).ensure(c.getCommitID());
+        MessageIndex messages = MessageIndex.load(GITLET_DIR);
+        messages.add(c);
+        messages.save(GITLET_DIR);
+        getSession().setCurrCommitID(c.getCommitID());
         clearStagedArea(INDEX);
     }
 
@@ -175,23 +264,33 @@ public class Repository {
         return parents;
     }
 
-    private static HashMap<String, String> calculateBlobs() {
-        HashMap<String, String> blobs = getCurrCommit().getBlobs();
+    // applies the staging area to the head tree; only the trees of changed paths are written
+    private static String calculateTree() {
+        HashMap<String, String> changes = new HashMap<>();
         Index stagedArea = getStagedArea(INDEX);
         for (String i: stagedArea.getStagedToAdd().keySet()) {
             // update + add if any changes in staged
-            blobs.put(i, stagedArea.getStagedToAdd().get(i));
+            changes.put(Tree.relativePath(i), stagedArea.getStagedToAdd().get(i));
         }
         for (String j: stagedArea.getStagedToRemove().keySet()) {
-            blobs.remove(j); // remove files which are staged
+            changes.put(Tree.relativePath(j), null); // remove files which are staged
         }
-        return blobs;
+        return Tree.update(getCurrCommit().getTreeID(), changes, OBJECT_DIR);
     }
 
     private static void clearStagedArea(File idx) {
         Index stagedArea = getStagedArea(idx);
         stagedArea.clearStagingArea();
-        stagedArea.saveIndex();
+        saveStagedArea(stagedArea, idx);
+    }
+
+    // the local index is written once when the session closes, others right away
+    private static void saveStagedArea(Index stagedArea, File idx) {
+        if (idx.equals(INDEX)) {
+            getSession().indexChanged();
+        } else {
+            stagedArea.saveIndex(idx);
+        }
     }
 
     public static void removeFile(String fileName) {
@@ -203,26 +302,21 @@ public class Repository {
             stagedArea.removeFromStagedToAdd(f.getPath());
         } else if (currCommit.getBlobs().containsKey(f.getPath())) {
             String blobID = currCommit.getBlobs().get(f.getPath());
-            Blob b = readObject(getObjectFilebyID(blobID, Repository.OBJECT_DIR), Blob.class);
-            stagedArea.stagedToRemove(b);
+            stagedArea.stagedToRemove(f.getPath(), blobID);
         } else {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+            throw error("No reason to remove the file.");
         }
-        stagedArea.saveIndex();
+        getSession().indexChanged();
     }
 
     public static void displayLog() {
-        currCommit = getCurrCommit();
-        Commit commitToDisplay = currCommit;
-        while (commitToDisplay != null) {
-            printLog(commitToDisplay);
-            if (commitToDisplay.getParents().isEmpty()) {
-                commitToDisplay = null;
-            } else {
-                String tempCommitID = commitToDisplay.getParents().get(0);
-                commitToDisplay = getObjectbyID(tempCommitID, Commit.class, OBJECT_DIR);
-            }
+        CommitGraph graph = CommitGraph.load(GITLET_DIR);
+        String idToDisplay = getCurrCommitID();
+        while (idToDisplay != null) {
+            printLog(getCommit(idToDisplay));
+            // follow the first parents through the commit-graph
+            List<String> parents = graph.getParents(idToDisplay);
+            idToDisplay = parents.isEmpty() ? null : parents.get(0);
         }
     }
 
@@ -234,38 +328,33 @@ public class Repository {
         System.out.println();
     }
 
+    // blobs are skipped by their header, so only commits are ever read in full
     public static void displayGlobalLog() {
-        for (File folder: OBJECT_DIR.listFiles()) {
-            for (String id: plainFilenamesIn(folder)) {
-                File f = join(folder, id);
-                if (commitOrBlob(f).equals("Commit")) {
-                    Commit c = readObject(f, Commit.class);
-                    printLog(c);
-                }
+        for (String id: allObjectIDs(OBJECT_DIR)) {
+            if (objectType(id, OBJECT_DIR) == COMMIT_TYPE) {
+                printLog(getCommitbyID(id, OBJECT_DIR));
             }
         }
     }
 
     public static void findCommitsWithMsg(String commitMsg) {
-        List<String> commitIdList = new ArrayList<>();
-        for (File folder: OBJECT_DIR.listFiles()) {
-            for (String id: plainFilenamesIn(folder)) {
-                File f = join(folder, id);
-                if (commitOrBlob(f).equals("Commit")) {
-                    Commit c = readObject(f, Commit.class);
-                    if (c.getCommitMsg().equals(commitMsg)) {
-                        commitIdList.add(c.getCommitID());
-                    }
-                }
-            }
+        MessageIndex messages = MessageIndex.load(GITLET_DIR);
+        printCommitIDList(new ArrayList<>(messages.findMessage(commitMsg)));
+    }
+
+    // find --token WORD: commits whose message has the word; find --prefix TEXT: messages starting so
+    public static void findCommitsWithOption(String option, String query) {
+        MessageIndex messages = MessageIndex.load(GITLET_DIR);
+        if (option.equals("--token")) {
+            printCommitIDList(new ArrayList<>(messages.findToken(query)));
+        } else {
+            printCommitIDList(new ArrayList<>(messages.findMessagePrefix(query)));
         }
-        printCommitIDList(commitIdList);
     }
 
     private static void printCommitIDList(List<String> commitIdList) {
         if (commitIdList.isEmpty()) {
-            System.out.println("Found no commit with that message.");
-            System.exit(0);
+            throw error("Found no commit with that message.");
         } else {
             for (String id: commitIdList) {
                 System.out.println(id);
@@ -273,47 +362,41 @@ public class Repository {
         }
     }
 
+    // every section but the branches comes from one pass over the head tree,
+    // the staging area and the working directory
     public static void displayStatus() {
+        Status status = new Status(getCurrCommit().getTreeID(), getStagedArea(INDEX),
+                CWD, OBJECT_DIR, getSession().getJournal());
         System.out.println("=== Branches ===");
         displayBranches();
         System.out.println();
 
         System.out.println("=== Staged Files ===");
-        displayStagedFiles(getStagedArea(INDEX).getStagedToAdd());
+        printLines(status.getStaged());
         System.out.println();
 
         System.out.println("=== Removed Files ===");
-        displayStagedFiles(getStagedArea(INDEX).getStagedToRemove());
+        printLines(status.getRemoved());
         System.out.println();
 
         System.out.println("=== Modifications Not Staged For Commit ===");
-        printUnstagedFiles();
+        printLines(status.getUnstaged());
         System.out.println();
 
         System.out.println("=== Untracked Files ===");
-        displayUntrackedFiles();
+        printLines(status.getUntracked());
         System.out.println();
     }
 
-    private static void displayUntrackedFiles() {
-        List<String> res = new ArrayList<>();
-        for (File f: CWD.listFiles()) {
-            if (!getStagedArea(INDEX).getStagedToAdd().containsKey(f.getPath())
-                    && !getStagedArea(INDEX).getStagedToRemove().containsKey(f.getPath())
-                    && !getCurrCommit().getBlobs().containsKey(f.getPath())
-                    && !f.isDirectory()) {
-                res.add(f.getName());
-            }
-        }
-        Collections.sort(res);
-        for (String fileName: res) {
-            System.out.println(fileName);
+    private static void printLines(List<String> lines) {
+        for (String line: lines) {
+            System.out.println(line);
         }
     }
 
     private static void displayBranches() {
         String currBranch = getCurrBranch();
-        for (String branch: plainFilenamesIn(HEADS_DIR)) {
+        for (String branch: Refs.names(GITLET_DIR)) {
             if (currBranch.equals(branch)) {
                 System.out.printf("*%s%n", currBranch.replace("_", "/"));
             } else {
@@ -322,73 +405,91 @@ public class Repository {
         }
     }
 
-    private static void displayStagedFiles(HashMap<String, String> files) {
-        printFileNamesfromPaths(asSortedList(files.keySet()));
-    }
-
-    private static void printFileNamesfromPaths(List<String> l) {
-        for (String filePath: l) {
-            System.out.println(getFileNameFromPath(filePath));
+    /** Prints what changed, file by file, from the head of the current branch to
+     *  the working directory, from the head of a branch to the working directory,
+     *  or from the head of one branch to that of another. The working directory
+     *  holds the files tracked by the current commit or staged, less those staged
+     *  for removal; untracked files are left out. Each file is read, diffed and
+     *  written out before the next one. */
+    public static void displayDiff(String... branchNames) {
+        List<Commit> commits = new ArrayList<>();
+        for (String branchName : branchNames) {
+            commits.add(getCommit(getBranchHead(branchName.replace("/", "_"), "diff")));
         }
+        HashMap<String, String> from = commits.isEmpty()
+                ? getCurrCommit().getBlobs() : commits.get(0).getBlobs();
+        boolean toWorkingTree = commits.size() < 2;
+        HashMap<String, String> to = toWorkingTree ? workingTreeBlobs() : commits.get(1).getBlobs();
+
+        TreeSet<String> paths = new TreeSet<>(from.keySet());
+        paths.addAll(to.keySet());
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        for (String path : paths) {
+            String fromID = from.get(path);
+            String toID = to.get(path);
+            if (Objects.equals(fromID, toID)) {
+                continue;
+            }
+            String name = Tree.relativePath(path);
+            String fromName = fromID == null ? "/dev/null" : "a/" + name;
+            String toName = toID == null ? "/dev/null" : "b/" + name;
+            byte[] fromContent = fromID == null ? new byte[0] : getSession().getBlobContent(fromID);
+            byte[] toContent = toID == null ? new byte[0]
+                    : toWorkingTree ? readContents(new File(path)) : getSession().getBlobContent(toID);
+            out.println("diff --git " + fromName + " " + toName);
+            if (isBinary(fromContent) || isBinary(toContent)) {
+                out.println("Binary files " + fromName + " and " + toName + " differ");
+            } else {
+                Diff.writeUnified(fromName, toName, Diff.lines(fromContent),
+                        Diff.lines(toContent), out);
+            }
+        }
+        out.flush();
     }
 
-    private static void printUnstagedFiles() {
-        printFileNamesfromPaths(getUnstagedFiles());
-    }
-
-    private static List<String> getUnstagedFiles() {
-        List<String> res = unstagedFilesfromMap(getStagedArea(INDEX).getStagedToAdd());
-        for (String entry: unstagedFilesfromMap(getCurrCommit().getBlobs())) {
-            String[] tempParts = entry.split(Pattern.quote(" "));
-            String filePath = tempParts[0];
-            if (!getStagedArea(INDEX).getStagedToRemove().containsKey(filePath)
-                    && !getStagedArea(INDEX).getStagedToAdd().containsKey(filePath)) {
-                res.add(filePath + " " + tempParts[1]);
+    // the IDs of the files a commit made now would track, as they are on disk
+    private static HashMap<String, String> workingTreeBlobs() {
+        Index stagedArea = getStagedArea(INDEX);
+        Set<String> paths = new HashSet<>(getCurrCommit().getBlobs().keySet());
+        paths.addAll(stagedArea.getStagedToAdd().keySet());
+        paths.removeAll(stagedArea.getStagedToRemove().keySet());
+        List<File> existing = new ArrayList<>();
+        for (String path : paths) {
+            if (new File(path).isFile()) {
+                existing.add(new File(path));
             }
         }
-        Collections.sort(res);
-        return res;
+        return stagedArea.blobIDsOf(existing);
     }
 
-    // a helper function for above to shorten codes
-    private static List<String> unstagedFilesfromMap(HashMap<String, String> map) {
-        List<String> res = new ArrayList<>();
-        for (Map.Entry<String, String> entry: map.entrySet()) {
-            String filePath = entry.getKey();
-            String fileContent = entry.getValue();
-            File fileInCWD = new File(filePath);
-
-            // if the file does not exist in CWD or the version is diff with CWD version
-            if (!fileInCWD.exists()) {
-                res.add(filePath + " (deleted)");
-            } else {
-                String fileContentInCWD = sha1(filePath, readContents(fileInCWD));
-                if (!fileContent.equals(fileContentInCWD)) {
-                    res.add(filePath + " (modified)");
-                }
+    // like git, a file with a NUL byte is not shown line by line
+    private static boolean isBinary(byte[] content) {
+        for (byte b : content) {
+            if (b == 0) {
+                return true;
             }
         }
-        return res;
+        return false;
     }
 
     public static void checkoutToFile(String fileName) {
         File f = join(CWD, fileName);
         checkFileExistInCommit(f, getCurrCommit());
 
-        rewriteContentforCheckoutToFile(getCurrCommit(), f);
+        Index stagedArea = getStagedArea(INDEX);
+        rewriteContentforCheckoutToFile(getCurrCommit(), f, stagedArea);
     }
 
     private static void checkFileExistInCommit(File f, Commit c) {
         if (!c.getBlobs().containsKey(f.getPath())) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
     }
 
     private static void checkCommitExistwithID(String id) {
-        if (!getObjectFilebyID(id, Repository.OBJECT_DIR).exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        if (!objectExistence(id, Repository.OBJECT_DIR)) {
+            throw error("No commit with that id exists.");
         }
     }
 
@@ -399,145 +500,208 @@ public class Repository {
     public static void checkoutToCommitsFile(String id, String fileName) {
         File f = join(CWD, fileName);
         checkCommitExistwithID(id);
-        Commit c = getObjectbyID(id, Commit.class, OBJECT_DIR);
+        Commit c = getCommit(id);
         checkFileExistInCommit(f, c);
 
-        rewriteContentforCheckoutToFile(c, f);
+        Index stagedArea = getStagedArea(INDEX);
+        rewriteContentforCheckoutToFile(c, f, stagedArea);
     }
 
-    private static void rewriteContentforCheckoutToFile(Commit c, File f) {
-        Blob oldBlob = getObjectbyID(getBlobIDbyFile(c, f), Blob.class, OBJECT_DIR);
-        writeContents(f, oldBlob.getContent());
+    // files whose stat data shows they already hold the wanted blob are left untouched
+    private static void rewriteContentforCheckoutToFile(Commit c, File f, Index stagedArea) {
+        String blobID = getBlobIDbyFile(c, f);
+        if (!blobID.equals(stagedArea.cachedBlobID(f))) {
+            f.getParentFile().mkdirs();
+            Blob.writeBlobTo(blobID, OBJECT_DIR, f);
+            stagedArea.recordStat(f, blobID);
+        }
     }
 
     public static void checkoutToBranch(String branchName) {
         String safeBranchName = branchName.replace("/", "_");
-        File branch = join(HEADS_DIR, safeBranchName);
-        checkFileExist(branch, "checkout-branch");
+        String id = getBranchHead(safeBranchName, "checkout-branch");
         checkBranchiscurrBranch(safeBranchName, "checkout");
 
-        String id = readContentsAsString(branch);
-        Commit c = getObjectbyID(id, Commit.class, OBJECT_DIR);
-        checkPossibleRewritesToUntrackedFile(c, GITLET_DIR);
+        Commit c = getCommit(id);
+        Map<String, String[]> changes = Tree.diff(getCurrCommit().getTreeID(),
+                c.getTreeID(), OBJECT_DIR);
+        checkPossibleRewritesToUntrackedFile(changes);
 
-        changeToCommit(c);
+        Index stagedArea = getStagedArea(INDEX);
+        changeToCommit(changes, stagedArea);
         changeBranchTo(safeBranchName);
         clearStagedArea(INDEX);
     }
 
-    private static void changeToCommit(Commit c) {
-        for (String filePath: c.getBlobs().keySet()) {
-            rewriteContentforCheckoutToFile(c, new File(filePath));
-        } // rewrite + add files
+    // moves the working directory from the current commit to the one CHANGES, the diff
+    // of their trees, leads to. Only the files that differ between the two commits, or
+    // whose working copy no longer matches the current commit, are written, in parallel;
+    // the stat data of the index tells the latter apart without reading every file.
+    private static void changeToCommit(Map<String, String[]> changes, Index stagedArea) {
+        Map<File, String> toWrite = new LinkedHashMap<>();
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String[]> entry: changes.entrySet()) {
+            File f = join(CWD, entry.getKey());
+            changed.add(f.getPath());
+            if (entry.getValue()[1] == null) {
+                WorkingTree.delete(f, CWD);
+                stagedArea.forgetStat(f.getPath());
+            } else {
+                toWrite.put(f, entry.getValue()[1]);
+            }
+        } // deleted first, so a file can take the place of a folder
+
+        // files both commits agree on are only restored if they were changed or deleted
+        HashMap<String, String> tracked = getCurrCommit().getBlobs();
+        List<File> kept = new ArrayList<>();
+        for (Map.Entry<String, String> entry: tracked.entrySet()) {
+            File f = new File(entry.getKey());
+            if (changed.contains(entry.getKey())) {
+                continue;
+            } else if (f.isFile()) {
+                kept.add(f);
+            } else {
+                toWrite.put(f, entry.getValue());
+            }
+        }
+        HashMap<String, String> working = stagedArea.blobIDsOf(kept);
+        for (File f: kept) {
+            String blobID = tracked.get(f.getPath());
+            if (!blobID.equals(working.get(f.getPath()))) {
+                toWrite.put(f, blobID);
+            }
+        }
 
-        for (String filePath: getCurrCommit().getBlobs().keySet()) {
-            if (!c.getBlobs().containsKey(filePath)) {
-                restrictedDelete(new File(filePath));
+        List<Map.Entry<File, String>> writes = new ArrayList<>();
+        for (Map.Entry<File, String> entry: toWrite.entrySet()) {
+            if (!entry.getValue().equals(stagedArea.cachedBlobID(entry.getKey()))) {
+                writes.add(entry);
             }
         }
+        writes.parallelStream().forEach(entry -> {
+            entry.getKey().getParentFile().mkdirs();
+            Blob.writeBlobTo(entry.getValue(), OBJECT_DIR, entry.getKey());
+        });
+        for (Map.Entry<File, String> entry: writes) {
+            stagedArea.recordStat(entry.getKey(), entry.getValue());
+        }
     }
 
     private static void changeBranchTo(String branchName) {
-        writeContents(HEAD, branchName.replace("/", "_"));
+        getSession().setCurrBranch(branchName.replace("/", "_"));
     }
 
-    private static void checkPossibleRewritesToUntrackedFile(Commit c, File gitletDir) {
-        int tempLength = gitletDir.getAbsolutePath().length();
-        String parentPath = gitletDir.getAbsolutePath().substring(0, tempLength - 8);
-        File tempCwd = new File(parentPath);
-
-        for (String fileName: plainFilenamesIn(tempCwd)) {
-            File f = join(tempCwd, fileName);
-            if (c.getBlobs().containsKey(f.getPath())
-                    && !getCurrCommit().getBlobs().containsKey(f.getPath())) {
+    // only a file the other commit adds, and the current one does not track, can be in the way
+    private static void checkPossibleRewritesToUntrackedFile(Map<String, String[]> changes) {
+        WorkingTree workingTree = new WorkingTree(CWD);
+        for (Map.Entry<String, String[]> entry: changes.entrySet()) {
+            String[] blobs = entry.getValue();
+            if (blobs[0] == null && blobs[1] != null && join(CWD, entry.getKey()).isFile()
+                    && !workingTree.isIgnoredFile(entry.getKey())) {
                 String m1 = "There is an untracked file in the way; ";
                 String m2 = "delete it, or add and commit it first.";
-                System.out.println(m1 + m2);
-                System.exit(0);
+                throw error(m1 + m2);
             }
         }
     }
 
     private static void checkFileExist(File f, String operation) {
         if (!f.exists()) {
+            throw error("File does not exist.");
+        }
+    }
+
+    // the head of the branch, loose or packed, named by its safe name
+    private static String getBranchHead(String branchName, String operation) {
+        String id = Refs.read(GITLET_DIR, branchName);
+        if (id == null) {
             if (operation.equals("checkout-branch")) {
-                System.out.println("No such branch exists.");
-            } else if (operation.equals("add")) {
-                System.out.println("File does not exist.");
+                throw error("No such branch exists.");
             } else {
-                System.out.println("A branch with that name does not exist.");
+                throw error("A branch with that name does not exist.");
             }
-            System.exit(0);
         }
+        return id;
     }
 
     private static void checkBranchiscurrBranch(String branchName, String operation) {
         if (getCurrBranch().equals(branchName)) {
             if (operation.equals("checkout")) {
-                System.out.println("No need to checkout the current branch.");
+                throw error("No need to checkout the current branch.");
             } else if (operation.equals("merge")) {
-                System.out.println("Cannot merge a branch with itself.");
+                throw error("Cannot merge a branch with itself.");
             } else {
-                System.out.println("Cannot remove the current branch.");
+                throw error("Cannot remove the current branch.");
             }
-            System.exit(0);
         }
     }
 
     public static void createNewBranch(String branchName) {
         String safeBranchName = branchName.replace("/", "_");
-        File newBranch = join(HEADS_DIR, branchName);
-        branchAlrExist(newBranch);
-        writeContents(newBranch, getCurrCommitID());
+        branchAlrExist(safeBranchName);
+        Refs.write(GITLET_DIR, safeBranchName, getCurrCommitID());
     }
 
-    private static void branchAlrExist(File branch) {
-        if (branch.exists()) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+    private static void branchAlrExist(String branchName) {
+        if (Refs.exists(GITLET_DIR, branchName)) {
+            throw error("A branch with that name already exists.");
         }
     }
 
     public static void removeBranch(String branchName) {
         String safeBranchName = branchName.replace("/", "_");
-        File branch = join(HEADS_DIR, safeBranchName);
-        checkFileExist(branch, "rm-branch");
+        getBranchHead(safeBranchName, "rm-branch");
         checkBranchiscurrBranch(safeBranchName, "rm-branch");
-        branch.delete();
+        Refs.delete(GITLET_DIR, safeBranchName);
     }
 
     public static void resetToCommit(String commitID, File gitletDir) {
         File tempObjectDir = join(gitletDir, "objects");
         File tempHead = join(gitletDir, "HEAD");
 
-        Commit c = getObjectbyID(commitID, Commit.class, tempObjectDir);
-        checkPossibleRewritesToUntrackedFile(c, gitletDir);
-
-        changeToCommit(c);
-        changeBranchHeadToGivenCommit(readContentsAsString(tempHead), commitID,
-                join(gitletDir, "refs", "heads"));
-        clearStagedArea(join(gitletDir, "index"));
-    }
-
-    private static void changeBranchHeadToGivenCommit(String branch,
-                                                      String commitID, File headsDir) {
-        writeContents(join(headsDir, branch), commitID);
+        Commit c = gitletDir.equals(GITLET_DIR) ? getCommit(commitID)
+                : getCommitbyID(commitID, tempObjectDir);
+        Map<String, String[]> changes = Tree.diff(getCurrCommit().getTreeID(),
+                c.getTreeID(), OBJECT_DIR);
+        checkPossibleRewritesToUntrackedFile(changes);
+
+        File tempIndex = join(gitletDir, "index");
+        Index stagedArea = getStagedArea(tempIndex);
+        changeToCommit(changes, stagedArea);
+        if (gitletDir.equals(GITLET_DIR)) {
+            getSession().setCurrCommitID(c.getCommitID());
+        } else {
+            Refs.write(gitletDir, readContentsAsString(tempHead), c.getCommitID());
+        }
+        clearStagedArea(tempIndex);
     }
 
     public static void mergeToBranch(String branchName) {
         String safeBranchName = branchName.replace("/", "_");
         checkUncommitedChanges();
-        File tbranch = join(HEADS_DIR, safeBranchName);
-        checkFileExist(tbranch, "merge");
+        String tbranchId = getBranchHead(safeBranchName, "merge");
         checkBranchiscurrBranch(safeBranchName, "merge");
-        String tbranchId = readContentsAsString(tbranch);
-        Commit mCommit = getObjectbyID(tbranchId, Commit.class, OBJECT_DIR);
-        checkPossibleRewritesToUntrackedFile(mCommit, GITLET_DIR);
+        Commit mCommit = getCommit(tbranchId);
+        checkPossibleRewritesToUntrackedFile(Tree.diff(getCurrCommit().getTreeID(),
+                mCommit.getTreeID(), OBJECT_DIR));
         Commit splitPoint = findSplitPoint(mCommit);
         fastMerge(splitPoint, mCommit, safeBranchName);
 
         Commit cCommit = getCurrCommit();
-        for (Map.Entry<String, String> entry : mCommit.getBlobs().entrySet()) {
+        // a file the given branch did not change since the split point never needs merging,
+        // so only the paths of the diff between their trees are looked at
+        HashMap<String, String> changedInGiven = new HashMap<>();
+        HashMap<String, String> removedInGiven = new HashMap<>();
+        for (Map.Entry<String, String[]> d : Tree.diff(splitPoint.getTreeID(),
+                mCommit.getTreeID(), OBJECT_DIR).entrySet()) {
+            String path = join(CWD, d.getKey()).getPath();
+            if (d.getValue()[1] != null) {
+                changedInGiven.put(path, d.getValue()[1]);
+            } else {
+                removedInGiven.put(path, d.getValue()[0]);
+            }
+        }
+        for (Map.Entry<String, String> entry : changedInGiven.entrySet()) {
             String mKey = entry.getKey();
             // 1-1 situation to stage new files from given branch
             if (
@@ -549,9 +713,8 @@ public class Repository {
                             && !splitPoint.getBlobs().get(mKey).equals(entry.getValue())
                             && splitPoint.getBlobs().get(mKey).equals(cCommit.getBlobs().get(mKey)))
             ) {
-                checkoutToCommitsFile(mCommit.getCommitID(),
-                        getFileNameFromPath(mKey));
-                addToStage(getFileNameFromPath(mKey));
+                checkoutToCommitsFile(mCommit.getCommitID(), Tree.relativePath(mKey));
+                addToStage(Tree.relativePath(mKey));
             } else if (
                     (!splitPoint.getBlobs().containsKey(mKey)
                             && cCommit.getBlobs().containsKey(mKey)
@@ -563,37 +726,30 @@ public class Repository {
                                                 entry.getValue(),
                                                 splitPoint.getBlobs().get(mKey))).size() == 3)
             ) {
-                // 1-2 situation when both have same file and file contents have conflicts
-                String cBlobId = cCommit.getBlobs().get(mKey);
-                Blob currBranchVersion = getObjectbyID(cBlobId, Blob.class, OBJECT_DIR);
-                String currFileContent = convertBytesToString(currBranchVersion.getContent());
-                Blob mBranchVersion = getObjectbyID(entry.getValue(), Blob.class, OBJECT_DIR);
-                String mFileContent = convertBytesToString(mBranchVersion.getContent());
-                mergeConflictFilesContent(currFileContent, mFileContent, mKey);
+                // 1-2 situation when both changed the file: their edits are merged line by line
+                mergeFileContents(blobContentOrEmpty(splitPoint.getBlobs().get(mKey)),
+                        blobContentOrEmpty(cCommit.getBlobs().get(mKey)),
+                        blobContentOrEmpty(entry.getValue()), mKey);
             } else if (!cCommit.getBlobs().containsKey(mKey)
                         && splitPoint.getBlobs().containsKey(mKey)
                         && !entry.getValue().equals(splitPoint.getBlobs().get(mKey))) {
                 // only given branch has this file but this was originally in splitpoint
-                Blob mBranchVersion = getObjectbyID(entry.getValue(), Blob.class, OBJECT_DIR);
-                String mFileContent = convertBytesToString(mBranchVersion.getContent());
-                mergeConflictFilesContent("", mFileContent, mKey);
+                mergeFileContents(blobContentOrEmpty(splitPoint.getBlobs().get(mKey)),
+                        new byte[0], blobContentOrEmpty(entry.getValue()), mKey);
             }
         }
 
-        for (Map.Entry<String, String> entry : splitPoint.getBlobs().entrySet()) {
+        for (Map.Entry<String, String> entry : removedInGiven.entrySet()) {
             String key = entry.getKey();
             if (!mCommit.getBlobs().containsKey(key)) {
                 if (cCommit.getBlobs().containsKey(key)) {
                     if (cCommit.getBlobs().get(key).equals(entry.getValue())) {
                         // 2-1 situation: when we need to remove as given branch did this
-                        removeFile(getFileNameFromPath(key));
+                        removeFile(Tree.relativePath(key));
                     } else {
                         // 2-2 situation: conflict also, but only exist in currBranch
-                        String id = cCommit.getBlobs().get(key);
-                        Blob currBranchVersion = getObjectbyID(id, Blob.class, OBJECT_DIR);
-                        byte[] c = currBranchVersion.getContent();
-                        String currFileContent = convertBytesToString(c);
-                        mergeConflictFilesContent(currFileContent, "", key);
+                        mergeFileContents(blobContentOrEmpty(entry.getValue()),
+                                blobContentOrEmpty(cCommit.getBlobs().get(key)), new byte[0], key);
                     }
                 }
             }
@@ -604,93 +760,57 @@ public class Repository {
 
     }
 
-    private static void mergeConflictFilesContent(String content1,
-                                                  String content2, String filePath) {
-        String newfile = "<<<<<<< HEAD\n";
-        newfile += content1;
-        newfile += "=======\n";
-        newfile += content2;
-        newfile += ">>>>>>>\n";
-        writeContents(getFileFromPath(filePath), newfile);
-        addToStage(getFileNameFromPath(filePath));
-        System.out.println("Encountered a merge conflict.");
+    // a side that deleted the file counts as having emptied it, so that its
+    // deletion conflicts with any change of the other side
+    private static void mergeFileContents(byte[] base, byte[] curr, byte[] given,
+                                          String filePath) {
+        Merge merged = new Merge(Diff.lines(base), Diff.lines(curr), Diff.lines(given));
+        File f = getFileFromPath(filePath);
+        // the current branch may have removed the file, and its folder with it
+        f.getParentFile().mkdirs();
+        writeContents(f, merged.getContent());
+        addToStage(Tree.relativePath(filePath));
+        if (merged.isConflicted()) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
+
+    private static byte[] blobContentOrEmpty(String blobID) {
+        return blobID == null ? new byte[0] : getSession().getBlobContent(blobID);
     }
 
     // if the split point is the same commit as the given branch / current branch
     private static void fastMerge(Commit splitPoint, Commit mCommit, String branchName) {
         if (splitPoint.getCommitID().equals(mCommit.getCommitID())) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            System.exit(0);
+            throw error("Given branch is an ancestor of the current branch.");
         } else if (splitPoint.getCommitID().equals(getCurrCommitID())) {
             checkoutToBranch(branchName);
-            System.out.println("Current branch fast-forwarded.");
-            System.exit(0);
+            closeSession();
+            throw error("Current branch fast-forwarded.");
         }
     }
 
+    // histories that share no commit, e.g. pulled from a remote with its own initial
+    // commit, are merged against an empty commit
     private static Commit findSplitPoint(Commit mCommit) {
-        HashMap<String, Integer> ancestors = commitsWithDepth(getCurrCommit(), OBJECT_DIR);
-        ArrayList<String> level = new ArrayList<>();
-        level.add(mCommit.getCommitID());
-        while (!level.isEmpty()) {
-            ArrayList<String> newLevel = new ArrayList<>();
-            HashMap<Integer, String> tempRes = new HashMap<>();
-            for (String id: level) {
-                if (ancestors.containsKey(id)) {
-                    tempRes.put(ancestors.get(id), id);
-                } else {
-                    Commit tempC = getObjectbyID(id, Commit.class, OBJECT_DIR);
-                    newLevel.addAll(tempC.getParents());
-                }
-            }
-            if (!tempRes.isEmpty()) {
-                Integer minKey = Collections.min(tempRes.keySet());
-                String id = tempRes.get(minKey);
-                return getObjectbyID(id, Commit.class, OBJECT_DIR);
-            }
-            level = newLevel;
-        }
-        return new Commit(); // will not be incur; to fulfill Java compiling requirements
-    }
-
-    private static HashMap<String, Integer> commitsWithDepth(Commit c, File objectDir) {
-        HashMap<String, Integer> res = new HashMap<>();
-        Queue<Object[]> q = new LinkedList<>();
-        Object[] initPair = new Object[2];
-        initPair[0] = c;
-        initPair[1] = 0;
-        q.add(initPair);
-        while (!q.isEmpty()) {
-            Object[] currPair = q.remove();
-            Commit currC = (Commit) currPair[0];
-            Integer lvl = (Integer) currPair[1];
-            res.put(currC.getCommitID(), lvl);
-            for (String id: currC.getParents()) {
-                Commit p = getObjectbyID(id, Commit.class, objectDir);
-                Object[] newPair = new Object[2];
-                newPair[0] = p;
-                newPair[1] = lvl + 1;
-                q.add(newPair);
-            }
-        }
-        return res;
+        String id = CommitGraph.load(GITLET_DIR).mergeBase(getCurrCommitID(), mCommit.getCommitID());
+        return id == null ? new Commit() : getCommit(id);
     }
 
     private static void checkUncommitedChanges() {
-        if (!getStagedArea(INDEX).getStagedToRemove().isEmpty()
-                || !getStagedArea(INDEX).getStagedToAdd().isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+        Index stagedArea = getStagedArea(INDEX);
+        if (!stagedArea.getStagedToRemove().isEmpty()
+                || !stagedArea.getStagedToAdd().isEmpty()) {
+            throw error("You have uncommitted changes.");
         }
     }
 
     public static void addRemote(String remoteName, String remoteDir) {
         File remoteFile = join(GITLET_DIR, "remote");
-        Remote remote = readObject(remoteFile, Remote.class);
+        Remote remote = Remote.readRemote(remoteFile);
 
         if (remote.remoteMap.containsKey(remoteName)) {
-            System.out.println("A remote with that name already exists.");
-            System.exit(0);
+            throw error("A remote with that name already exists.");
         }
 
         remote.addRemote(remoteName, remoteDir);
@@ -699,11 +819,10 @@ public class Repository {
 
     public static void rmRemote(String remoteName) {
         File remoteFile = join(GITLET_DIR, "remote");
-        Remote remote = readObject(remoteFile, Remote.class);
+        Remote remote = Remote.readRemote(remoteFile);
 
         if (!remote.remoteMap.containsKey(remoteName)) {
-            System.out.println("A remote with that name does not exist.");
-            System.exit(0);
+            throw error("A remote with that name does not exist.");
         }
 
         remote.rmRemote(remoteName);
@@ -715,62 +834,103 @@ public class Repository {
         String safeRemoteBranch = remoteBranch.replace("/", "_");
         // read remote object and check if we have this remote .gitlet dir
         File remoteFile = join(GITLET_DIR, "remote");
-        Remote remote = readObject(remoteFile, Remote.class);
+        Remote remote = Remote.readRemote(remoteFile);
         File remoteDir = remote.remoteMap.get(remoteName);
         if (!remoteDir.exists()) {
-            System.out.println("Remote directory not found.");
-            System.exit(0);
+            throw error("Remote directory not found.");
         }
 
         // get targetId i.e. head at the remote specific branch
         File remoteObjects = join(remoteDir, "objects");
-        File targetFile = join(remoteDir, "refs", "heads", safeRemoteBranch);
-        String targetId = readContentsAsString(targetFile);
+        String targetId = Refs.read(remoteDir, safeRemoteBranch);
+        if (targetId == null) {
+            throw error("That remote does not have that branch.");
+        }
         if (!findHistoricCommit(getCurrCommitID(), targetId)) {
-            System.out.println("Please pull down remote changes before pushing.");
-            System.exit(0);
-        }
-
-        // append future commits
-        Commit targetCommit = getObjectbyID(targetId, Commit.class, remoteObjects);
-        Set<String> commitIdSet = commitsWithDepth(targetCommit, remoteObjects).keySet();
-        Queue<String> queue = new LinkedList<>();
-        queue.add(getCurrCommitID());
-        HashSet<String> blobIdSet = new HashSet<>();
-        while (!queue.isEmpty()) {
-            String tempCommitId = queue.remove();
-            if (!commitIdSet.contains(tempCommitId)) {
-                File outFile = getObjectFilebyID(tempCommitId, remoteObjects);
-                Commit commitToWrite = getObjectbyID(tempCommitId, Commit.class, OBJECT_DIR);
-                writeObject(outFile, commitToWrite);
-                blobIdSet.addAll(commitToWrite.getBlobs().values());
-                queue.addAll(commitToWrite.getParents());
-            }
+            throw error("Please pull down remote changes before pushing.");
         }
 
-        for (String blobId: blobIdSet) {
-            if (!objectExistence(blobId, OBJECT_DIR)) {
-                File outFile = getObjectFilebyID(blobId, remoteObjects);
-                Blob outBlob = getObjectbyID(blobId, Blob.class, OBJECT_DIR);
-                writeObject(outFile, outBlob);
-            }
+        // only the commits the remote lacks are read, up to the ones it already has
+        LinkedHashMap<String, Commit> commits = missingCommits(getCurrCommitID(),
+                OBJECT_DIR, remoteObjects);
+        copyCommits(commits, OBJECT_DIR, remoteObjects);
+        MessageIndex remoteMessages = MessageIndex.load(remoteDir);
+        for (Commit c : commits.values()) {
+            remoteMessages.add(c);
         }
 
+        remoteMessages.save(remoteDir);
+        CommitGraph.load(remoteDir).ensure(getCurrCommitID());
         resetToCommit(getCurrCommitID(), remoteDir);
     }
 
-    public static boolean findHistoricCommit(String startCommitID, String targetId) {
-        Queue<String> queue = new LinkedList<>();
-        queue.add(startCommitID);
-        while (!queue.isEmpty()) {
-            String tempCommitID = queue.remove();
-            if (tempCommitID.equals(targetId)) {
-                return true;
+    /** Returns the commits reachable from WANT in FROMDIR that TODIR does not have,
+     *  parents before children. Each commit TODIR has is a "have" the walk stops at:
+     *  a repository holding a commit holds all of its history, so only the commits
+     *  that are new to TODIR are read. */
+    private static LinkedHashMap<String, Commit> missingCommits(String want, File fromDir,
+                                                                File toDir) {
+        LinkedHashMap<String, Commit> res = new LinkedHashMap<>();
+        // iterative post-order walk, as in CommitGraph.ensure
+        Deque<String> stack = new ArrayDeque<>();
+        HashMap<String, Commit> pending = new HashMap<>();
+        stack.push(want);
+        while (!stack.isEmpty()) {
+            String top = stack.peek();
+            if (res.containsKey(top)
+                    || (!pending.containsKey(top) && objectExistence(top, toDir))) {
+                stack.pop();
+                continue;
+            }
+            if (!pending.containsKey(top)) {
+                Commit c = getCommitbyID(top, fromDir);
+                pending.put(top, c);
+                for (String p : c.getParents()) {
+                    stack.push(p);
+                }
+                continue;
             }
-            Commit tempCommit = getObjectbyID(tempCommitID, Commit.class, OBJECT_DIR);
-            queue.addAll(tempCommit.getParents());
+            stack.pop();
+            res.put(top, pending.remove(top));
         }
-        return false;
+        return res;
+    }
+
+    // copies COMMITS, and the trees and blobs they need, from FROMDIR to TODIR as stored.
+    // Every object is written after those it refers to, so that a copy cut short never
+    // leaves TODIR a commit or tree whose contents are missing: that is what lets the
+    // walks above stop at the first commit or subtree TODIR has. Blobs refer to nothing
+    // and are most of the bytes, so they are all copied first, in parallel.
+    private static void copyCommits(LinkedHashMap<String, Commit> commits,
+                                    File fromDir, File toDir) {
+        LinkedHashSet<String> trees = new LinkedHashSet<>();
+        LinkedHashSet<String> blobs = new LinkedHashSet<>();
+        List<Integer> treesOfCommit = new ArrayList<>();
+        for (Commit c : commits.values()) {
+            Tree.missingObjects(c.getTreeID(), fromDir, toDir, trees, blobs);
+            treesOfCommit.add(trees.size());
+        }
+        copyObjects(blobs, fromDir, toDir);
+
+        // the new trees of a commit are listed before what they hold
+        List<String> treeIDs = new ArrayList<>(trees);
+        int from = 0;
+        int k = 0;
+        for (String commitID : commits.keySet()) {
+            int to = treesOfCommit.get(k++);
+            for (int i = to - 1; i >= from; i--) {
+                copyObject(treeIDs.get(i), fromDir, toDir);
+            }
+            from = to;
+            copyObject(commitID, fromDir, toDir);
+        }
+    }
+
+    public static boolean findHistoricCommit(String startCommitID, String targetId) {
+        if (!objectExistence(targetId, OBJECT_DIR)) {
+            return false;
+        }
+        return CommitGraph.load(GITLET_DIR).isAncestor(targetId, startCommitID);
     }
 
     public static void pull(String remoteName, String remoteBranch) {
@@ -782,77 +942,132 @@ public class Repository {
     public static void fetch(String remoteName, String remoteBranch) {
         String safeRemoteBranch = remoteBranch.replace("/", "_");
         File remoteFile = join(GITLET_DIR, "remote");
-        Remote remote = readObject(remoteFile, Remote.class);
+        Remote remote = Remote.readRemote(remoteFile);
         File toCopy = remote.remoteMap.get(remoteName);
         if (!toCopy.exists()) {
-            System.out.println("Remote directory not found.");
-            System.exit(0);
+            throw error("Remote directory not found.");
         }
 
         // get the branch file under heads_dir in remote dir
         File remoteObjects = join(toCopy, "objects");
-        File startFile = join(toCopy, "refs", "heads", safeRemoteBranch);
-        if (!startFile.exists()) {
-            System.out.println("That remote does not have that branch.");
-            System.exit(0);
-        }
-        String startCommitID = readContentsAsString(startFile);
-
-        // create the new branch and change the head to the new branch
-        File newBranch = join(HEADS_DIR, remoteName + "_" + safeRemoteBranch);
-        newBranch.delete();
-        createNewBranch(remoteName + "_" + safeRemoteBranch);
-        writeContents(newBranch, startCommitID);
-
-        // copy all the commits / blobs from startCommit to the current .gitlet dir
-        Queue<String> queue = new LinkedList<>();
-        queue.add(startCommitID);
-        HashSet<String> blobIdSet = new HashSet<>();
-        while (!queue.isEmpty()) {
-            String tempCommitID = queue.remove();
-            Commit tempCommit = getObjectbyID(tempCommitID, Commit.class, remoteObjects);
-
-            // write the remote object not in curr repo to the current .gitlet folder
-            if (!objectExistence(tempCommitID, OBJECT_DIR)) {
-                File outFile = getObjectFilebyID(tempCommitID, OBJECT_DIR);
-                updateBlobsFilePath(tempCommit, remoteObjects);
-                writeObject(outFile, tempCommit);
-            }
-
-            // add the commits on this branch to the commitsQueue
-            queue.addAll(tempCommit.getParents());
+        String startCommitID = Refs.read(toCopy, safeRemoteBranch);
+        if (startCommitID == null) {
+            throw error("That remote does not have that branch.");
+        }
 
-            // add all the blobs id of this commit into a set
-            // to finalize it after the while loop
-            blobIdSet.addAll(tempCommit.getBlobs().values());
+        // copy the commits / trees / blobs from startCommit we do not have yet;
+        // tree paths are relative to the repository root, so they are copied as they are
+        LinkedHashMap<String, Commit> commits = missingCommits(startCommitID,
+                remoteObjects, OBJECT_DIR);
+        copyCommits(commits, remoteObjects, OBJECT_DIR);
+        MessageIndex messages = MessageIndex.load(GITLET_DIR);
+        for (Commit c : commits.values()) {
+            messages.add(c);
         }
+        messages.save(GITLET_DIR);
+        CommitGraph.load(GITLET_DIR).ensure(startCommitID);
 
-        for (String blobId: blobIdSet) {
-            if (!objectExistence(blobId, OBJECT_DIR)) {
-                File outFile = getObjectFilebyID(blobId, OBJECT_DIR);
-                Blob outBlob = getObjectbyID(blobId, Blob.class, remoteObjects);
-                writeObject(outFile, outBlob);
+        // the remote branch is only moved once everything it points to is here
+        Refs.write(GITLET_DIR, remoteName + "_" + safeRemoteBranch, startCommitID);
+    }
+
+    /** Deletes every object no branch head and no staged file can reach, then packs
+     *  what is left, along with the branches. Reachable objects are marked in a bitset
+     *  over the sorted IDs of the store; the unmarked loose ones are deleted and the
+     *  pack is rewritten without the unmarked packed ones. */
+    public static void gc() {
+        List<String> ids = new ArrayList<>(allObjectIDs(OBJECT_DIR));
+        BitSet live = markReachable(ids);
+        int removed = ids.size() - live.cardinality();
+        long reclaimed = 0;
+        for (Map.Entry<String, File> loose : PackFile.looseObjects(OBJECT_DIR).entrySet()) {
+            if (!live.get(Collections.binarySearch(ids, loose.getKey()))) {
+                File f = loose.getValue();
+                reclaimed += f.length();
+                f.delete();
+                f.getParentFile().delete(); // only succeeds once the fanout folder is empty
             }
         }
-    }
+        reclaimed += PackFile.compact(OBJECT_DIR,
+                id -> live.get(Collections.binarySearch(ids, id)));
+        // copies left behind by a killed add, push or fetch; a recent one may be in use
+        File[] leftovers = OBJECT_DIR.listFiles((dir, name) -> name.startsWith("tmp_obj_"));
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        for (File f : leftovers == null ? new File[0] : leftovers) {
+            if (f.lastModified() < cutoff) {
+                reclaimed += f.length();
+                f.delete();
+            }
+        }
+        if (removed > 0) {
+            // rebuilt from the commits left the next time find needs it
+            join(GITLET_DIR, "messages").delete();
+        }
 
-    // update the blobs file path when removing commit from remote to current
-    public static void updateBlobsFilePath(Commit c, File objectsDir) {
-        HashMap<String, String> updatedBlobs = new HashMap<>();
-        for (Map.Entry<String, String> entry: c.getBlobs().entrySet()) {
-            String tempPath = entry.getKey();
-            String tempBlobId = entry.getValue();
-            String tempFileName = getFileNameFromPath(tempPath);
-            File updatedFile = join(CWD, tempFileName);
+        PackFile.repack(OBJECT_DIR, deltaBases());
+        Refs.pack(GITLET_DIR);
+        System.out.printf("Removed %d unreachable objects, reclaiming %d bytes.%n",
+                removed, reclaimed);
+    }
 
-            // update for blob object
-            Blob tempBlob = getObjectbyID(tempBlobId, Blob.class, objectsDir);
-            tempBlob.updateBlob(updatedFile);
+    // marks in a bitset over IDS every object reachable from a branch head or the
+    // staging area; a blob packed as a delta keeps the blob it is a delta against
+    private static BitSet markReachable(List<String> ids) {
+        BitSet live = new BitSet(ids.size());
+        PackFile pack = PackFile.open(OBJECT_DIR);
+        Predicate<String> mark = new Predicate<String>() {
+            @Override
+            public boolean test(String id) {
+                int i = Collections.binarySearch(ids, id);
+                if (i < 0 || live.get(i)) {
+                    return false;
+                }
+                live.set(i);
+                String base = pack == null ? null : pack.baseOf(id);
+                if (base != null) {
+                    test(base);
+                }
+                return true;
+            }
+        };
+        for (String blobID : getStagedArea(INDEX).getStagedToAdd().values()) {
+            mark.test(blobID);
+        }
+        Deque<String> commits = new ArrayDeque<>();
+        for (String branch : Refs.names(GITLET_DIR)) {
+            commits.push(Refs.read(GITLET_DIR, branch));
+        }
+        while (!commits.isEmpty()) {
+            String id = commits.pop();
+            if (mark.test(id)) {
+                Commit c = getCommitbyID(id, OBJECT_DIR);
+                for (String parent : c.getParents()) {
+                    commits.push(parent);
+                }
+                Tree.walk(c.getTreeID(), OBJECT_DIR, mark);
+            }
+        }
+        return live;
+    }
 
-            // update for commit blobs map
-            updatedBlobs.put(updatedFile.getPath(), tempBlobId);
+    // a map from each blob introduced by a loose commit to the blob its path held
+    // in the first parent of that commit
+    private static Map<String, String> deltaBases() {
+        HashMap<String, String> res = new HashMap<>();
+        for (String id: PackFile.looseObjects(OBJECT_DIR).keySet()) {
+            if (objectType(id, OBJECT_DIR) != COMMIT_TYPE) {
+                continue;
+            }
+            Commit c = getCommit(id);
+            String parentTree = c.getParents().isEmpty() ? Tree.EMPTY_ID
+                    : getCommit(c.getParents().get(0)).getTreeID();
+            for (String[] change: Tree.diff(parentTree, c.getTreeID(), OBJECT_DIR).values()) {
+                if (change[0] != null && change[1] != null) {
+                    res.putIfAbsent(change[1], change[0]);
+                }
+            }
         }
-        c.updateBlobs(updatedBlobs);
+        return res;
     }
 
 }
@@ -0,0 +1,178 @@
+package gitlet;
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Represents the state of a gitlet repository for the life of one command.
+ *
+ * HEAD, the head commit ID of the current branch and the index are read from
+ * .gitlet at most once, changed in memory, and written back once by flush().
+ * Deserialized commits and small blobs are kept in a bounded LRU cache,
+ * so walking the same commits again costs no disk reads.
+ *
+ *  @author Grebeth.P
+ */
+public class RepositorySession {
+    private static final int CACHE_CAPACITY = 512;
+    // blobs bigger than this are read again rather than kept on the heap
+    private static final int MAX_CACHED_BLOB_SIZE = 64 * 1024;
+
+    private final File gitletDir;
+    private final File objectDir;
+
+    private String currBranch;
+    private boolean currBranchChanged;
+    private String currCommitID;
+    private boolean currCommitIDChanged;
+    private Index index;
+    private boolean indexChanged;
+    private Watcher.Journal journal;
+    private boolean journalRead;
+
+    // for each objects folder, a map from object ID to its deserialized commit or blob
+    // contents, least recently used first; objects never change once written, so the
+    // caches outlive the session, which matters when a daemon runs many commands in one
+    // JVM. A commit's blobs point into its own working tree, hence one cache per repository.
+    private static final HashMap<File, LinkedHashMap<String, Object>> CACHES = new HashMap<>();
+
+    // the cache of objectDir; every access, get() included, holds its lock
+    private final LinkedHashMap<String, Object> objects;
+
+    public RepositorySession(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.objectDir = join(gitletDir, "objects");
+        synchronized (CACHES) {
+            this.objects = CACHES.computeIfAbsent(objectDir.getAbsoluteFile(),
+                    dir -> new LinkedHashMap<>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                            return size() > CACHE_CAPACITY;
+                        }
+                    });
+        }
+    }
+
+    public String getCurrBranch() {
+        if (currBranch == null) {
+            currBranch = readContentsAsString(join(gitletDir, "HEAD"));
+        }
+        return currBranch;
+    }
+
+    public void setCurrBranch(String branchName) {
+        if (currCommitIDChanged) {
+            // the old branch has to keep the head it was moved to
+            writeCurrCommitID();
+        }
+        currBranch = branchName;
+        currBranchChanged = true;
+        currCommitID = null;
+    }
+
+    public String getCurrCommitID() {
+        if (currCommitID == null) {
+            currCommitID = Refs.read(gitletDir, getCurrBranch());
+        }
+        return currCommitID;
+    }
+
+    // moves the head of the current branch to the commit with the given ID
+    public void setCurrCommitID(String commitID) {
+        currCommitID = commitID;
+        currCommitIDChanged = true;
+    }
+
+    public Commit getCurrCommit() {
+        return getCommit(getCurrCommitID());
+    }
+
+    public Index getIndex() {
+        if (index == null) {
+            index = Index.readIndex(join(gitletDir, "index"));
+        }
+        return index;
+    }
+
+    // marks the index as changed so that flush() writes it back
+    public void indexChanged() {
+        indexChanged = true;
+    }
+
+    /** Returns what the watcher journaled since the last baseline, read once per
+     *  session, or null if no watcher runs. */
+    public Watcher.Journal getJournal() {
+        if (!journalRead) {
+            journal = Watcher.read(gitletDir);
+            journalRead = true;
+        }
+        return journal;
+    }
+
+    // an abbreviated ID may come to match more commits as new ones are written, so
+    // only full IDs are looked up, and a commit is cached under its full ID
+    public Commit getCommit(String id) {
+        if (id.length() == UID_LENGTH) {
+            Object cached = cached(id);
+            if (cached instanceof Commit) {
+                return (Commit) cached;
+            }
+        }
+        Commit c = getCommitbyID(id, objectDir);
+        cache(c.getCommitID(), c);
+        return c;
+    }
+
+    public byte[] getBlobContent(String id) {
+        Object cached = cached(id);
+        if (cached instanceof byte[]) {
+            return (byte[]) cached;
+        }
+        byte[] content = Blob.readBlob(id, objectDir);
+        if (content.length <= MAX_CACHED_BLOB_SIZE && id.length() == UID_LENGTH) {
+            cache(id, content);
+        }
+        return content;
+    }
+
+    private Object cached(String id) {
+        synchronized (objects) {
+            return objects.get(id);
+        }
+    }
+
+    private void cache(String id, Object o) {
+        synchronized (objects) {
+            objects.put(id, o);
+        }
+    }
+
+    /** Writes HEAD, the current branch head and the index back if they were changed,
+     *  then a new watcher baseline if one was taken. */
+    public void flush() {
+        if (currCommitIDChanged) {
+            writeCurrCommitID();
+        }
+        if (currBranchChanged) {
+            writeContents(join(gitletDir, "HEAD"), currBranch);
+            currBranchChanged = false;
+        }
+        if (index != null && (indexChanged || index.isStatCacheChanged())) {
+            index.saveIndex(join(gitletDir, "index"));
+            indexChanged = false;
+        }
+        if (journal != null) {
+            journal.save();
+        }
+    }
+
+    private void writeCurrCommitID() {
+        Refs.write(gitletDir, getCurrBranch(), currCommitID);
+        currCommitIDChanged = false;
+    }
+
+}
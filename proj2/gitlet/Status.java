@@ -0,0 +1,177 @@
+package gitlet;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/** The state of every file of the working directory against the head commit
+ * and the staging area, as the status command shows it.
+ *
+ * The files of the head tree, the ones staged for addition, the ones staged for
+ * removal and the ones in the working directory are each read in path order, and
+ * walked together once, one path at a time, the way a merge join walks sorted
+ * tables; every section comes out sorted. Only the files whose blob ID decides
+ * whether they were modified are hashed, all at once and in parallel, and the
+ * stat data of the index spares most of them. When a Watcher runs, the working
+ * directory is not even listed: only what it journaled is looked at.
+ *
+ *  @author Grebeth.P
+ */
+class Status {
+    private final List<String> staged = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+    private final List<String> unstaged = new ArrayList<>();
+    private final List<String> untracked = new ArrayList<>();
+
+    /** Computes the status of the working tree under CWD against the tree HEADTREEID,
+     *  stored in OBJECTDIR, and the staging area INDEX. With the JOURNAL of a watcher
+     *  that has a baseline, only the files it journaled since and the files untracked
+     *  then are looked at; without one, every file is, and a baseline is taken if a
+     *  watcher runs. JOURNAL may be null. */
+    Status(String headTreeID, Index index, File cwd, File objectDir, Watcher.Journal journal) {
+        boolean watched = journal != null && journal.hasBaseline();
+        Cursor head = new Cursor(Tree.flatten(headTreeID, objectDir).entrySet().iterator());
+        Cursor added = new Cursor(relative(index.getStagedToAdd().entrySet().iterator()));
+        Cursor toRemove = new Cursor(relative(index.getStagedToRemove().entrySet().iterator()));
+        List<Map.Entry<String, String>> files = new ArrayList<>();
+        WorkingTree workingTree = new WorkingTree(cwd);
+        if (watched) {
+            index.trustUnchanged(journal::isUnchanged);
+            for (String path : journal.candidates(workingTree, cwd)) {
+                files.add(new AbstractMap.SimpleEntry<>(path, new File(cwd, path).getPath()));
+            }
+        } else {
+            for (File f : workingTree.files()) {
+                files.add(new AbstractMap.SimpleEntry<>(Tree.relativePath(f.getPath()),
+                        f.getPath()));
+            }
+        }
+        Cursor working = new Cursor(files.iterator());
+
+        // the tracked paths, in order, with the blob their working file should hold
+        List<String[]> toCompare = new ArrayList<>();
+        List<File> toHash = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        String path;
+        while ((path = first(head, added, toRemove, working)) != null) {
+            String headID = head.take(path);
+            String addedID = added.take(path);
+            boolean isRemoved = toRemove.take(path) != null;
+            String workingPath = working.take(path);
+            File f = new File(cwd, path);
+            // a tracked file not listed is ignored, deleted, or, with a watcher, unchanged
+            if (workingPath == null && (addedID != null || headID != null)
+                    && (index.cachedBlobID(f) != null || f.isFile())) {
+                workingPath = f.getPath();
+            }
+
+            if (addedID != null) {
+                staged.add(path);
+            }
+            if (isRemoved) {
+                removed.add(path);
+            }
+            String expected = addedID != null ? addedID : isRemoved ? null : headID;
+            if (expected == null) {
+                if (workingPath != null && headID == null && !isRemoved) {
+                    untracked.add(path);
+                }
+            } else if (workingPath == null) {
+                toCompare.add(new String[]{path, null, null});
+            } else {
+                toCompare.add(new String[]{path, expected, f.getPath()});
+                toHash.add(f);
+                present.add(f.getPath());
+            }
+        }
+
+        HashMap<String, String> workingIDs = index.blobIDsOf(toHash);
+        for (String[] entry : toCompare) {
+            if (entry[2] == null) {
+                unstaged.add(entry[0] + " (deleted)");
+            } else if (!entry[1].equals(workingIDs.get(entry[2]))) {
+                unstaged.add(entry[0] + " (modified)");
+            }
+        }
+        if (journal != null && !watched) {
+            // the stat data of every tracked file was just checked; no other is kept
+            index.retainStats(present);
+            journal.setBaseline(untracked);
+        }
+    }
+
+    /** Returns the paths staged for addition, relative to the repository root. */
+    List<String> getStaged() {
+        return staged;
+    }
+
+    List<String> getRemoved() {
+        return removed;
+    }
+
+    /** Returns the tracked paths whose working file differs, each followed by
+     *  " (modified)" or " (deleted)". */
+    List<String> getUnstaged() {
+        return unstaged;
+    }
+
+    List<String> getUntracked() {
+        return untracked;
+    }
+
+    // the smallest path any cursor is at, or null once they are all done
+    private static String first(Cursor... cursors) {
+        String res = null;
+        for (Cursor c : cursors) {
+            String p = c.peek();
+            if (p != null && (res == null || p.compareTo(res) < 0)) {
+                res = p;
+            }
+        }
+        return res;
+    }
+
+    // the entries of a staged map, keyed by absolute path, keyed by relative path
+    private static Iterator<Map.Entry<String, String>> relative(
+            Iterator<Map.Entry<String, String>> it) {
+        List<Map.Entry<String, String>> res = new ArrayList<>();
+        while (it.hasNext()) {
+            Map.Entry<String, String> e = it.next();
+            res.add(new AbstractMap.SimpleEntry<>(Tree.relativePath(e.getKey()), e.getValue()));
+        }
+        return res.iterator();
+    }
+
+    // a source of (path, value) pairs sorted by path, looked at one path at a time
+    private static class Cursor {
+        private final Iterator<Map.Entry<String, String>> it;
+        private Map.Entry<String, String> next;
+
+        Cursor(Iterator<Map.Entry<String, String>> it) {
+            this.it = it;
+            next = it.hasNext() ? it.next() : null;
+        }
+
+        String peek() {
+            return next == null ? null : next.getKey();
+        }
+
+        // the value at PATH if the cursor is there, which then moves past it; else null
+        String take(String path) {
+            if (next == null || !next.getKey().equals(path)) {
+                return null;
+            }
+            String res = next.getValue();
+            next = it.hasNext() ? it.next() : null;
+            return res;
+        }
+    }
+
+}
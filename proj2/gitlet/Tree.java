@@ -0,0 +1,234 @@
+package gitlet;
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+
+
+/** Represents a gitlet tree object, which is the contents of one directory:
+ * a sorted map from the name of each entry to the ID of the blob or the
+ * tree it points at. A commit points at the tree of the repository root.
+ *
+ * A tree is identified by its entries only, so a directory that did not change
+ * between two commits is the same tree in both of them; a new commit writes the
+ * trees on the paths of the changed files only and shares every other one.
+ * For the same reason, two trees with equal IDs are known to hold the same files,
+ * and comparing them never has to look inside.
+ *
+ * stored with Codec as: version | number of entries | entries,
+ * each entry being: 'b' or 't' | name | blob / tree ID
+ *
+ *  @author Grebeth.P
+ */
+public class Tree {
+    private static final int VERSION = 1;
+
+    /** The ID of the tree without entries, which is never read from the store. */
+    public static final String EMPTY_ID = new Tree().computeID();
+
+    // a map from entry name to "b" or "t" followed by the blob / tree ID
+    private final TreeMap<String, String> entries = new TreeMap<>();
+
+    private String computeID() {
+        List<Object> parts = new ArrayList<>();
+        parts.add("tree");
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            // names cannot hold a NUL, so no two entry lists hash the same text
+            parts.add(e.getKey() + "\0" + e.getValue() + "\n");
+        }
+        return sha1(parts);
+    }
+
+    public static Tree readTree(String id, File objectDir) {
+        if (id.equals(EMPTY_ID)) {
+            return new Tree();
+        }
+        return decode(readObjectBytes(id, objectDir));
+    }
+
+    public byte[] encode() {
+        Codec.Encoder out = new Codec.Encoder().putByte(VERSION).putInt(entries.size());
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            out.putByte(e.getValue().charAt(0)).putString(e.getKey()).putID(idOf(e.getValue()));
+        }
+        return out.toByteArray();
+    }
+
+    public static Tree decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        Codec.checkVersion(in, VERSION, "tree");
+        Tree res = new Tree();
+        int n = in.getInt();
+        for (int i = 0; i < n; i++) {
+            char type = (char) in.get();
+            String name = Codec.getString(in);
+            res.entries.put(name, type + Codec.getID(in));
+        }
+        return res;
+    }
+
+    // writes the tree unless the store already has it, and returns its ID
+    private String saveTree(File objectDir) {
+        String id = computeID();
+        if (!objectExistence(id, objectDir)) {
+            byte[] content = encode();
+            writeContents(newObjectFile(id, objectDir),
+                    objectHeader(TREE_TYPE, content.length), content);
+        }
+        return id;
+    }
+
+    private static boolean isTree(String entry) {
+        return entry.charAt(0) == 't';
+    }
+
+    private static String idOf(String entry) {
+        return entry.substring(1);
+    }
+
+    /** Returns the ID of the tree TREEID with CHANGES applied, a map from path
+     *  relative to the tree to the new blob ID, or null for removed files.
+     *  Only the trees along the changed paths are written; directories left
+     *  without entries disappear. */
+    public static String update(String treeID, Map<String, String> changes, File objectDir) {
+        if (changes.isEmpty()) {
+            return treeID;
+        }
+        Tree t = readTree(treeID, objectDir);
+        TreeMap<String, Map<String, String>> subChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    t.entries.remove(path);
+                } else {
+                    t.entries.put(path, "b" + change.getValue());
+                }
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> sub : subChanges.entrySet()) {
+            String old = t.entries.get(sub.getKey());
+            String oldID = old != null && isTree(old) ? idOf(old) : EMPTY_ID;
+            String newID = update(oldID, sub.getValue(), objectDir);
+            if (newID.equals(EMPTY_ID)) {
+                t.entries.remove(sub.getKey());
+            } else {
+                t.entries.put(sub.getKey(), "t" + newID);
+            }
+        }
+        if (t.entries.isEmpty()) {
+            return EMPTY_ID;
+        }
+        return t.saveTree(objectDir);
+    }
+
+    /** Returns a map from the path of every file under the tree TREEID,
+     *  relative to it, to its blob ID. */
+    public static TreeMap<String, String> flatten(String treeID, File objectDir) {
+        TreeMap<String, String> res = new TreeMap<>();
+        flatten(treeID, "", objectDir, res);
+        return res;
+    }
+
+    private static void flatten(String treeID, String prefix, File objectDir,
+                                Map<String, String> res) {
+        for (Map.Entry<String, String> e : readTree(treeID, objectDir).entries.entrySet()) {
+            if (isTree(e.getValue())) {
+                flatten(idOf(e.getValue()), prefix + e.getKey() + "/", objectDir, res);
+            } else {
+                res.put(prefix + e.getKey(), idOf(e.getValue()));
+            }
+        }
+    }
+
+    /** Returns a map from the path of every file that differs between the trees
+     *  A and B to its blob IDs in A and in B, null where it is missing.
+     *  Subtrees with equal IDs on both sides are skipped without being read. */
+    public static TreeMap<String, String[]> diff(String a, String b, File objectDir) {
+        TreeMap<String, String[]> res = new TreeMap<>();
+        diff(a, b, "", objectDir, res);
+        return res;
+    }
+
+    private static void diff(String a, String b, String prefix, File objectDir,
+                             Map<String, String[]> res) {
+        if (a.equals(b)) {
+            return;
+        }
+        TreeMap<String, String> aEntries = readTree(a, objectDir).entries;
+        TreeMap<String, String> bEntries = readTree(b, objectDir).entries;
+        TreeSet<String> names = new TreeSet<>(aEntries.keySet());
+        names.addAll(bEntries.keySet());
+        for (String name : names) {
+            String aEntry = aEntries.get(name);
+            String bEntry = bEntries.get(name);
+            if (Objects.equals(aEntry, bEntry)) {
+                continue;
+            }
+            String path = prefix + name;
+            // a name may be a file on one side and a directory on the other
+            String aSub = aEntry != null && isTree(aEntry) ? idOf(aEntry) : EMPTY_ID;
+            String bSub = bEntry != null && isTree(bEntry) ? idOf(bEntry) : EMPTY_ID;
+            diff(aSub, bSub, path + "/", objectDir, res);
+            String aBlob = aEntry != null && !isTree(aEntry) ? idOf(aEntry) : null;
+            String bBlob = bEntry != null && !isTree(bEntry) ? idOf(bEntry) : null;
+            if (!Objects.equals(aBlob, bBlob)) {
+                res.put(path, new String[]{aBlob, bBlob});
+            }
+        }
+    }
+
+    /** Adds to TREES the IDs of the tree TREEID and of the trees under it, each tree
+     *  before those it holds, and to BLOBS the IDs of the blobs under it, leaving out
+     *  what TODIR already has. A subtree TODIR has, or that TREES already holds,
+     *  is not walked, as everything under it is or will be copied along with it. */
+    public static void missingObjects(String treeID, File fromDir, File toDir,
+                                      Set<String> trees, Set<String> blobs) {
+        if (treeID.equals(EMPTY_ID) || trees.contains(treeID) || objectExistence(treeID, toDir)) {
+            return;
+        }
+        trees.add(treeID);
+        for (String entry : readTree(treeID, fromDir).entries.values()) {
+            if (isTree(entry)) {
+                missingObjects(idOf(entry), fromDir, toDir, trees, blobs);
+            } else if (!blobs.contains(idOf(entry)) && !objectExistence(idOf(entry), toDir)) {
+                blobs.add(idOf(entry));
+            }
+        }
+    }
+
+    /** Calls VISIT on the tree TREEID and on every tree and blob under it. The
+     *  trees VISIT returns false for, such as the ones it saw before, are not walked. */
+    public static void walk(String treeID, File objectDir, Predicate<String> visit) {
+        if (treeID.equals(EMPTY_ID) || !visit.test(treeID)) {
+            return;
+        }
+        for (String entry : readTree(treeID, objectDir).entries.values()) {
+            if (isTree(entry)) {
+                walk(idOf(entry), objectDir, visit);
+            } else {
+                visit.test(idOf(entry));
+            }
+        }
+    }
+
+    // the path of ABSPATH relative to the repository root, with '/' as separator
+    public static String relativePath(String absPath) {
+        // a path under the root without "." or ".." parts, the usual case, is just cut
+        String root = Repository.CWD.getPath() + File.separator;
+        if (absPath.startsWith(root) && !absPath.contains(File.separator + ".")) {
+            return absPath.substring(root.length()).replace(File.separatorChar, '/');
+        }
+        Path rel = Repository.CWD.toPath().relativize(new File(absPath).toPath());
+        return rel.toString().replace(File.separatorChar, '/');
+    }
+
+}
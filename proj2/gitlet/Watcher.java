@@ -0,0 +1,377 @@
+package gitlet;
+import static gitlet.Utils.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/** Represents a resident process recording which paths of the working directory
+ * change, so that status need not look at every file to find the few that did.
+ *
+ * `gitlet watch` registers every folder of the working directory with a
+ * WatchService and appends the path of every file or folder an event names, one
+ * per line, to .gitlet/watch-journal; a line "!" means events were lost. It writes
+ * "pid id" to .gitlet/watch once every folder is watched, and stops when that
+ * file is deleted, which `gitlet watch stop` does. The journal is started over,
+ * under a new id, once it grows past MAX_JOURNAL.
+ *
+ * A full status leaves a baseline in .gitlet/watch-state: the id and position in
+ * the journal it was taken at, and the untracked files then. A later status only
+ * looks at the paths journaled since, and at those untracked files; every other
+ * file is as the full status saw it. Events reach the journal after the fact, so
+ * a reader first creates a cookie file in .gitlet and waits for the watcher to
+ * journal it after every event before it.
+ *
+ *  watch-state: watcher id | journal position, then one untracked path per line
+ *
+ *  @author Grebeth.P
+ */
+class Watcher {
+    private static final String OVERFLOW = "!";
+    private static final String COOKIE_PREFIX = "watch-cookie-";
+    private static final long MAX_JOURNAL = 16L * 1024 * 1024;
+    private static final long COOKIE_TIMEOUT_MILLIS = 1000;
+    // past this many changed paths a full status is as cheap, and starts a new baseline
+    private static final int MAX_CHANGED = 10000;
+
+    private static File watchFile(File gitletDir) {
+        return join(gitletDir, "watch");
+    }
+
+    private static File journalFile(File gitletDir) {
+        return join(gitletDir, "watch-journal");
+    }
+
+    private static File stateFile(File gitletDir) {
+        return join(gitletDir, "watch-state");
+    }
+
+    /** What changed in the working directory since the last baseline. */
+    static class Journal {
+        private final File gitletDir;
+        private final String watcherID;
+        private final long position;
+        private final boolean hasBaseline;
+        private final Set<String> changed = new HashSet<>();
+        private final List<String> untracked = new ArrayList<>();
+        private List<String> newBaseline;
+
+        private Journal(File gitletDir, String watcherID, long position, boolean hasBaseline) {
+            this.gitletDir = gitletDir;
+            this.watcherID = watcherID;
+            this.position = position;
+            this.hasBaseline = hasBaseline;
+        }
+
+        /** Returns whether there is a baseline the changes are known against;
+         *  if not, only a full status can say what changed. */
+        boolean hasBaseline() {
+            return hasBaseline;
+        }
+
+        // whether the file at ABSPATH, and every folder it is in, went unchanged
+        boolean isUnchanged(String absPath) {
+            String path = Tree.relativePath(absPath);
+            while (true) {
+                if (changed.contains(path)) {
+                    return false;
+                }
+                int slash = path.lastIndexOf('/');
+                if (slash < 0) {
+                    return true;
+                }
+                path = path.substring(0, slash);
+            }
+        }
+
+        /** Returns every file, relative to the root, that may have appeared since the
+         *  baseline or was untracked then, sorted; a changed folder gives all its files. */
+        List<String> candidates(WorkingTree workingTree, File root) {
+            TreeSet<String> res = new TreeSet<>(untracked);
+            for (String path : changed) {
+                File f = join(root, path);
+                if (f.isDirectory()) {
+                    for (File child : workingTree.files(f)) {
+                        res.add(Tree.relativePath(child.getPath()));
+                    }
+                } else {
+                    res.add(path);
+                }
+            }
+            List<String> files = new ArrayList<>();
+            for (String path : res) {
+                if (join(root, path).isFile() && !workingTree.isIgnoredFile(path)) {
+                    files.add(path);
+                }
+            }
+            return files;
+        }
+
+        /** Makes the untracked files UNTRACKED, found by a full status, the baseline
+         *  of the next ones; it is written by save(). */
+        void setBaseline(List<String> untrackedFiles) {
+            newBaseline = untrackedFiles;
+        }
+
+        // written after the index, as the baseline vouches for its stat data
+        void save() {
+            if (newBaseline == null) {
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(watcherID).append(' ').append(position).append('\n');
+            for (String path : newBaseline) {
+                sb.append(path).append('\n');
+            }
+            writeContents(stateFile(gitletDir), sb.toString());
+            newBaseline = null;
+        }
+    }
+
+    /** Returns what the watcher of GITLETDIR journaled since the last baseline,
+     *  or null if no watcher is running or it does not answer in time. */
+    static Journal read(File gitletDir) {
+        String[] watch = readWatchFile(gitletDir);
+        if (watch == null) {
+            return null;
+        }
+        long from = journalFile(gitletDir).length();
+        String[] state = stateFile(gitletDir).isFile()
+                ? readContentsAsString(stateFile(gitletDir)).split("\n") : new String[0];
+        String[] base = state.length > 0 ? state[0].split(" ") : new String[0];
+        boolean sameWatcher = base.length == 2 && base[0].equals(watch[1]);
+        if (sameWatcher) {
+            from = Long.parseLong(base[1]);
+        }
+
+        String cookie = COOKIE_PREFIX + randomID();
+        File cookieFile = join(gitletDir, cookie);
+        try {
+            Files.createFile(cookieFile.toPath());
+            String marker = "#" + cookie + "\n";
+            long deadline = System.currentTimeMillis() + COOKIE_TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                String journaled = readFrom(journalFile(gitletDir), from);
+                int end = journaled == null ? -1 : journaled.indexOf(marker);
+                if (end >= 0) {
+                    String[] now = readWatchFile(gitletDir);
+                    if (now == null || !now[1].equals(watch[1])) {
+                        return null; // the journal was started over meanwhile
+                    }
+                    long position = from + journaled.substring(0, end + marker.length())
+                            .getBytes(StandardCharsets.UTF_8).length;
+                    return parse(gitletDir, watch[1], position, sameWatcher,
+                            journaled.substring(0, end), state);
+                }
+                Thread.sleep(1);
+            }
+            return null;
+        } catch (IOException | InterruptedException excp) {
+            return null;
+        } finally {
+            cookieFile.delete();
+        }
+    }
+
+    private static Journal parse(File gitletDir, String watcherID, long position,
+                                 boolean sameWatcher, String lines, String[] state) {
+        boolean hasBaseline = sameWatcher;
+        Set<String> changed = new HashSet<>();
+        for (String line : lines.split("\n")) {
+            if (line.equals(OVERFLOW)) {
+                hasBaseline = false;
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                changed.add(line);
+            }
+        }
+        if (changed.size() > MAX_CHANGED) {
+            hasBaseline = false;
+        }
+        Journal res = new Journal(gitletDir, watcherID, position, hasBaseline);
+        if (hasBaseline) {
+            res.changed.addAll(changed);
+            res.untracked.addAll(Arrays.asList(state).subList(1, state.length));
+        }
+        return res;
+    }
+
+    // "pid id" of the running watcher, or null if there is none
+    private static String[] readWatchFile(File gitletDir) {
+        File f = watchFile(gitletDir);
+        if (!f.isFile()) {
+            return null;
+        }
+        String[] parts = readContentsAsString(f).trim().split(" ");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            boolean alive = ProcessHandle.of(Long.parseLong(parts[0]))
+                    .map(ProcessHandle::isAlive).orElse(false);
+            return alive ? parts : null;
+        } catch (NumberFormatException excp) {
+            return null;
+        }
+    }
+
+    private static String readFrom(File f, long from) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+            if (in.length() < from) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) (in.length() - from)];
+            in.seek(from);
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String randomID() {
+        byte[] raw = new byte[8];
+        new SecureRandom().nextBytes(raw);
+        return Codec.toHex(raw);
+    }
+
+    public static void watch(File root, File gitletDir) {
+        if (readWatchFile(gitletDir) != null) {
+            throw error("A watcher is already running.");
+        }
+        File watchFile = watchFile(gitletDir);
+        File journalFile = journalFile(gitletDir);
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> dirs = new HashMap<>();
+            WatchKey gitletKey = gitletDir.toPath().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            register(root.toPath(), root, gitletDir, service, dirs, null);
+            writeContents(journalFile, "");
+            String id = randomID();
+            writeContents(watchFile, ProcessHandle.current().pid() + " " + id);
+            System.out.printf("Watching %s.%n", root.getPath());
+
+            try (OutputStream journal = new FileOutputStream(journalFile, true)) {
+                boolean running = true;
+                while (running) {
+                    StringBuilder lines = new StringBuilder();
+                    List<String> cookies = new ArrayList<>();
+                    // the keys signalled by then hold every event before the ones of
+                    // the first, so a cookie is journaled after all of them
+                    for (WatchKey key = service.take(); key != null; key = service.poll()) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                lines.append(OVERFLOW).append('\n');
+                                continue;
+                            }
+                            String name = event.context().toString();
+                            if (key == gitletKey) {
+                                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                                        && name.startsWith(COOKIE_PREFIX)) {
+                                    cookies.add(name);
+                                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE
+                                        && name.equals(watchFile.getName())) {
+                                    running = false;
+                                }
+                                continue;
+                            }
+                            Path path = dirs.get(key).resolve(name);
+                            lines.append(relative(root, path)).append('\n');
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                                    && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                                // files created before the folder was watched are journaled here
+                                register(path, root, gitletDir, service, dirs, lines);
+                            }
+                        }
+                        if (!key.reset()) {
+                            dirs.remove(key);
+                        }
+                    }
+                    for (String cookie : cookies) {
+                        lines.append('#').append(cookie).append('\n');
+                    }
+                    journal.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    journal.flush();
+
+                    if (running && journalFile.length() > MAX_JOURNAL) {
+                        // readers see the new id and take a new baseline
+                        new FileOutputStream(journalFile).close();
+                        writeContents(watchFile, ProcessHandle.current().pid() + " " + randomID());
+                    }
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watchFile.delete();
+        }
+    }
+
+    // watches DIR and every folder below it but .gitlet; appends the files found
+    // to LINES, unless it is null
+    private static void register(Path dir, File root, File gitletDir, WatchService service,
+                                 Map<WatchKey, Path> dirs, StringBuilder lines)
+            throws IOException {
+        Path gitlet = gitletDir.toPath();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs)
+                    throws IOException {
+                if (d.equals(gitlet)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = d.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                dirs.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (lines != null) {
+                    lines.append(relative(root, f)).append('\n');
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException excp) {
+                return FileVisitResult.CONTINUE; // gone already; its deletion is journaled
+            }
+        });
+    }
+
+    private static String relative(File root, Path path) {
+        return root.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    public static void stop(File gitletDir) {
+        if (!watchFile(gitletDir).delete()) {
+            throw error("No watcher is running.");
+        }
+    }
+
+}
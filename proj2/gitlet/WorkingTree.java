@@ -0,0 +1,186 @@
+package gitlet;
+import static gitlet.Utils.*;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/** Represents the working directory of a gitlet repository as seen by
+ * status, add and checkout: every plain file below the repository root,
+ * in any subdirectory, except for .gitlet itself and whatever the
+ * ignore file .gitletignore at the root excludes.
+ *
+ * Directories are listed in parallel, one fork/join task per directory.
+ * Each line of .gitletignore is a glob; a pattern without a '/' matches a
+ * name at any depth, one with a '/' matches the path from the root, and a
+ * trailing '/' makes it match directories only. Blank lines and lines
+ * starting with '#' are skipped.
+ *
+ *  @author Grebeth.P
+ */
+public class WorkingTree {
+    public static final String IGNORE_FILE = ".gitletignore";
+
+    private final File root;
+    private final List<Rule> rules = new ArrayList<>();
+
+    private static class Rule {
+        private PathMatcher matcher;
+        private boolean anchored;
+        private boolean dirOnly;
+    }
+
+    public WorkingTree(File root) {
+        this.root = root;
+        File ignoreFile = join(root, IGNORE_FILE);
+        if (ignoreFile.isFile()) {
+            for (String line : readContentsAsString(ignoreFile).split("\r?\n")) {
+                addRule(line.trim());
+            }
+        }
+    }
+
+    private void addRule(String pattern) {
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        Rule r = new Rule();
+        r.dirOnly = pattern.endsWith("/");
+        if (r.dirOnly) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        r.anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        r.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        rules.add(r);
+    }
+
+    // whether the file or directory at RELPATH from the root is left out
+    public boolean isIgnored(String relPath, boolean isDir) {
+        if (relPath.equals(".gitlet")) {
+            return true;
+        }
+        Path path = Paths.get(relPath);
+        for (Rule r : rules) {
+            if (r.dirOnly && !isDir) {
+                continue;
+            }
+            if (r.matcher.matches(r.anchored ? path : path.getFileName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // whether the file at RELPATH, or a folder it is in, is left out
+    public boolean isIgnoredFile(String relPath) {
+        if (isIgnored(relPath, false)) {
+            return true;
+        }
+        for (Path dir = Paths.get(relPath).getParent(); dir != null; dir = dir.getParent()) {
+            if (isIgnored(dir.toString(), true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns every file of the working tree, sorted by path. */
+    public List<File> files() {
+        return files(root);
+    }
+
+    /** Returns every file of the working tree under DIR, sorted by path. */
+    public List<File> files(File dir) {
+        List<File> res = ForkJoinPool.commonPool().invoke(new ScanTask(dir));
+        res.sort(Comparator.comparing(File::getPath));
+        return res;
+    }
+
+    public static boolean isGlob(String pattern) {
+        return pattern.matches(".*[*?\\[{].*");
+    }
+
+    /** Returns every file of the working tree whose path from the root
+     *  matches the glob PATTERN, sorted by path. */
+    public List<File> matching(String pattern) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        List<File> res = new ArrayList<>();
+        for (File f : files()) {
+            if (matcher.matches(Paths.get(relativePath(f)))) {
+                res.add(f);
+            }
+        }
+        return res;
+    }
+
+    private class ScanTask extends RecursiveTask<List<File>> {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+
+        ScanTask(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<File> compute() {
+            List<File> res = new ArrayList<>();
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return res;
+            }
+            List<ScanTask> subtasks = new ArrayList<>();
+            for (File child : children) {
+                boolean isDir = child.isDirectory();
+                if (isIgnored(relativePath(child), isDir)) {
+                    continue;
+                }
+                if (isDir) {
+                    // a symlinked folder may point back up the tree, so it is not walked
+                    if (!Files.isSymbolicLink(child.toPath())) {
+                        ScanTask sub = new ScanTask(child);
+                        sub.fork();
+                        subtasks.add(sub);
+                    }
+                } else if (child.isFile()) {
+                    res.add(child);
+                }
+            }
+            for (ScanTask sub : subtasks) {
+                res.addAll(sub.join());
+            }
+            return res;
+        }
+    }
+
+    private String relativePath(File f) {
+        return root.toPath().relativize(f.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /** Deletes the working file F, then whichever of its folders it leaves empty,
+     *  up to ROOT. Like restrictedDelete, it refuses files outside a repository. */
+    public static boolean delete(File f, File root) {
+        if (!f.toPath().toAbsolutePath().startsWith(root.toPath().toAbsolutePath())
+                || !join(root, ".gitlet").isDirectory()) {
+            throw new IllegalArgumentException("not .gitlet working directory");
+        }
+        if (f.isDirectory() || !f.delete()) {
+            return false;
+        }
+        File folder = f.getParentFile();
+        while (!folder.equals(root) && folder.delete()) { // only succeeds once empty
+            folder = folder.getParentFile();
+        }
+        return true;
+    }
+
+}